@@ -1,4 +1,10 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Binary search tree with strings as keys.
@@ -11,12 +17,223 @@ public class BST {
   private static class Node {
     private String key;
     private Node left, right;
+    private int priority;   // only used by the TREAP policy
     
     private Node(String key, Node left, Node right) {
       this.key = key;
       this.left  = left;
       this.right = right;
     }
+    
+    private Node(String key, Node left, Node right, int priority) {
+      this(key, left, right);
+      this.priority = priority;
+    }
+  }
+  
+  /**
+   * The nodes of a tree in slab mode: node i has the key keys[i] and the
+   * children left[i] and right[i], -1 for none. The root is node 0 and
+   * every child has a higher index than its parent.
+   */
+  private static final class Slab {
+    private String[] keys;
+    private int[] left, right;
+    private int n;
+    
+    private Slab(int capacity) {
+      keys = new String[capacity];
+      left = new int[capacity];
+      right = new int[capacity];
+    }
+    
+    /**
+     * Lay out a tree of n nodes level by level
+     */
+    private static Slab of(Node r, int n) {
+      Slab s = new Slab(Math.max(n, 16));
+      Node[] nodes = new Node[n];
+      if (r != null) {
+        nodes[s.n++] = r;
+      }
+      for (int i = 0; i < s.n; i++) {
+        Node node = nodes[i];
+        s.keys[i] = node.key;
+        s.left[i] = node.left == null ? -1 : s.n;
+        if (node.left != null) {
+          nodes[s.n++] = node.left;
+        }
+        s.right[i] = node.right == null ? -1 : s.n;
+        if (node.right != null) {
+          nodes[s.n++] = node.right;
+        }
+      }
+      return s;
+    }
+    
+    /**
+     * @return the root of the same tree built from nodes
+     */
+    private Node toNodes() {
+      Node[] nodes = new Node[n];
+      for (int i = n - 1; i >= 0; i--) {
+        nodes[i] = new Node(keys[i], left[i] < 0 ? null : nodes[left[i]],
+                            right[i] < 0 ? null : nodes[right[i]]);
+      }
+      return n == 0 ? null : nodes[0];
+    }
+    
+    private Slab copy() {
+      Slab s = new Slab(0);
+      s.keys = Arrays.copyOf(keys, n);
+      s.left = Arrays.copyOf(left, n);
+      s.right = Arrays.copyOf(right, n);
+      s.n = n;
+      return s;
+    }
+    
+    private boolean contains(String key) {
+      int i = n == 0 ? -1 : 0;
+      while (i >= 0) {
+        int cmp = key.compareTo(keys[i]);
+        if (cmp == 0) {
+          return true;
+        }
+        i = cmp < 0 ? left[i] : right[i];
+      }
+      return false;
+    }
+    
+    /**
+     * Insert a key as a new leaf
+     * @return false if the key is already in the tree
+     */
+    private boolean add(String key) {
+      int parent = -1;
+      int cmp = 0;
+      int i = n == 0 ? -1 : 0;
+      while (i >= 0) {
+        cmp = key.compareTo(keys[i]);
+        if (cmp == 0) {
+          return false;
+        }
+        parent = i;
+        i = cmp < 0 ? left[i] : right[i];
+      }
+      if (n == keys.length) {
+        int capacity = Math.max(16, 2 * n);
+        keys = Arrays.copyOf(keys, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+      }
+      keys[n] = key;
+      left[n] = right[n] = -1;
+      if (parent >= 0) {
+        if (cmp < 0) {
+          left[parent] = n;
+        } else {
+          right[parent] = n;
+        }
+      }
+      n++;
+      return true;
+    }
+    
+    /**
+     * @return the keys in symmetric order
+     */
+    private String[] sortedKeys() {
+      String[] result = new String[n];
+      int[] stack = new int[32];
+      int depth = 0;
+      int k = 0;
+      int i = n == 0 ? -1 : 0;
+      while (i >= 0 || depth > 0) {
+        while (i >= 0) {
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, 2 * depth);
+          }
+          stack[depth++] = i;
+          i = left[i];
+        }
+        i = stack[--depth];
+        result[k++] = keys[i];
+        i = right[i];
+      }
+      return result;
+    }
+    
+    /**
+     * @return the height, counted as height(Node) counts it
+     */
+    private int height() {
+      int[] depths = new int[n];
+      int max = 0;
+      for (int i = 0; i < n; i++) {
+        int d = i == 0 ? 1 : depths[i];
+        max = Math.max(max, d);
+        if (left[i] >= 0) {
+          depths[left[i]] = d + 1;
+        }
+        if (right[i] >= 0) {
+          depths[right[i]] = d + 1;
+        }
+      }
+      return max + 1;
+    }
+    
+    /**
+     * @return true if both slabs hold the same branching structure and keys
+     */
+    private boolean sameShape(Slab s) {
+      if (n != s.n) {
+        return false;
+      }
+      int[] stack = new int[64];
+      int depth = 0;
+      if (n > 0) {
+        stack[depth++] = 0;
+        stack[depth++] = 0;
+      }
+      while (depth > 0) {
+        int j = stack[--depth];
+        int i = stack[--depth];
+        if (!keys[i].equals(s.keys[j])
+            || (left[i] < 0) != (s.left[j] < 0) || (right[i] < 0) != (s.right[j] < 0)) {
+          return false;
+        }
+        if (depth + 4 > stack.length) {
+          stack = Arrays.copyOf(stack, 2 * stack.length);
+        }
+        if (left[i] >= 0) {
+          stack[depth++] = left[i];
+          stack[depth++] = s.left[j];
+        }
+        if (right[i] >= 0) {
+          stack[depth++] = right[i];
+          stack[depth++] = s.right[j];
+        }
+      }
+      return true;
+    }
+    
+    private long bytesUsed() {
+      return MemoryFootprint.object(3, 4)
+        + MemoryFootprint.array(keys.length, MemoryFootprint.reference())
+        + 2 * MemoryFootprint.array(left.length, 4);
+    }
+  }
+  
+  /**
+   * Restructuring policies, chosen when the tree is constructed
+   */
+  public enum Policy {
+    /** The tree is never restructured */
+    PLAIN,
+    /** Every access moves the key to the root (top-down splaying) */
+    SPLAY,
+    /** Randomized treap where every successful lookup may raise the priority of the key */
+    TREAP
   }
   
   /**
@@ -29,6 +246,19 @@ public class BST {
   }
   
   private Node root;
+  private Slab slab;        // the nodes in slab mode, when root is null
+  private LookupCache cache;
+  private BloomFilter bloom;
+  private Policy policy = Policy.PLAIN;
+  private Random random;
+  private int rotations;   // changed when nodes are moved, which invalidates cursor paths
+  private int count;        // the number of nodes
+  private long keyChars;    // the total length of the keys, for memoryFootprint
+  private double balance;   // the height limit of auto-rebalancing as a multiple of log2(count), 0 if off
+  private long version;
+  private String[] feed;    // the keys added in the last feed.length versions
+  private WorkloadTrace.Recorder recorder;
+  private long feedStart;   // the oldest version the feed can be read from
   
   /**
    * Standard constructor
@@ -37,8 +267,32 @@ public class BST {
     root = null; 
   }
   
+  /**
+   * Create an empty tree with a restructuring policy
+   * @param policy the policy used by contains and add
+   */
+  public BST(Policy policy) {
+    this.policy = policy;
+    if (policy == Policy.TREAP) {
+      random = new Random();
+    }
+  }
+  
   private BST(Node r) { 
     root = r; 
+    count = size(r);
+    keyChars = keyChars(r);
+  }
+  
+  private BST(Node r, Policy policy) {
+    this(policy);
+    root = r;
+    count = size(r);
+    keyChars = keyChars(r);
+  }
+  
+  public Policy policy() {
+    return policy;
   }
   
   /**
@@ -47,7 +301,378 @@ public class BST {
    * @return true if the key is found, else false
    */ 
   public boolean contains(String key) {
-    return contains(key, root);
+    if (recorder != null) {
+      recorder.contains(key);
+    }
+    if (bloom == null) {
+      return lookup(key);
+    } else if (!bloom.mightContain(BloomFilter.hash(key))) {
+      return false;
+    }
+    boolean found = lookup(key);
+    if (!found) {
+      bloom.falsePositive();
+    }
+    return found;
+  }
+  
+  /**
+   * Search a key through the lookup cache
+   */
+  private boolean lookup(String key) {
+    if (cache == null) {
+      return find(key);
+    }
+    int h = key.hashCode();
+    if (cache.contains(key, h)) {
+      return true;
+    } else if (find(key)) {
+      cache.put(key, h);
+      return true;
+    } else {
+      return false;
+    }
+  }
+  
+  /**
+   * Search a key, restructuring the tree as the policy says
+   */
+  private boolean find(String key) {
+    switch (policy) {
+      case SPLAY:
+        root = splay(key, root);
+        rotations++;
+        return root != null && key.compareTo(root.key) == 0;
+      case TREAP:
+        if (!contains(key, root)) {
+          return false;
+        }
+        root = boost(key, random.nextInt(), root);
+        rotations++;
+        return true;
+      default:
+        return slab != null ? slab.contains(key) : contains(key, root);
+    }
+  }
+  
+  /**
+   * Compute the number of nodes visited by a search for a key, without
+   * restructuring the tree
+   * @param key the key to be searched
+   * @return the depth of the key, or the length of the search path if the
+   * key is not in the tree
+   */
+  public int depth(String key) {
+    thaw();
+    int d = 0;
+    Node r = root;
+    while (r != null) {
+      d++;
+      int cmp = key.compareTo(r.key);
+      if (cmp == 0) {
+        break;
+      }
+      r = cmp < 0 ? r.left : r.right;
+    }
+    return d;
+  }
+  
+  /**
+   * Put a bounded cache in front of contains. Keys found in the tree are
+   * remembered, so repeated lookups of hot keys are answered without a
+   * descent. Only keys present in the tree are cached. The cache is
+   * cleared when a change-feed snapshot replaces the contents of the tree,
+   * the only way keys leave it. Note that contains then updates the cache.
+   * @param capacity the number of cached keys, rounded up to four times a
+   * power of two since the cache has four keys per set and a power of two
+   * of sets
+   */
+  public void enableLookupCache(int capacity) {
+    cache = new LookupCache(capacity);
+  }
+  
+  public void disableLookupCache() {
+    cache = null;
+  }
+  
+  /**
+   * @return the lookup cache with its hit statistics, or null if disabled
+   */
+  public LookupCache lookupCache() {
+    return cache;
+  }
+  
+  /**
+   * Record add, addAll, contains, containsAll and union to a workload trace
+   * @param recorder the recorder, or null to stop recording
+   */
+  public void setRecorder(WorkloadTrace.Recorder recorder) {
+    this.recorder = recorder;
+  }
+  
+  /**
+   * Set-associative cache of keys with CLOCK replacement within each set.
+   * A key goes to the set given by its hash code, which String caches,
+   * so a lookup costs a hash, at most four int comparisons and one equals.
+   */
+  public static class LookupCache {
+    private static final int WAYS = 4;
+    private final String[] keys;
+    private final int[] hashes;
+    private final boolean[] referenced;
+    private final byte[] hands;
+    private final int mask;
+    private long hits, misses;
+    
+    private LookupCache(int capacity) {
+      int needed = Math.max(1, (capacity - 1) / WAYS + 1);
+      int sets = needed == 1 ? 1 : Integer.highestOneBit(needed - 1) << 1;  // rounded up
+      keys = new String[sets * WAYS];
+      hashes = new int[sets * WAYS];
+      referenced = new boolean[sets * WAYS];
+      hands = new byte[sets];
+      mask = sets - 1;
+    }
+    
+    private int set(int h) {
+      return (h ^ (h >>> 16)) & mask;
+    }
+    
+    private boolean contains(String key, int h) {
+      int base = set(h) * WAYS;
+      for (int i = base; i < base + WAYS; i++) {
+        if (hashes[i] == h && key.equals(keys[i])) {
+          referenced[i] = true;
+          hits++;
+          return true;
+        }
+      }
+      misses++;
+      return false;
+    }
+    
+    private void put(String key, int h) {
+      int set = set(h);
+      while (true) {
+        int i = set * WAYS + hands[set];
+        hands[set] = (byte) ((hands[set] + 1) % WAYS);
+        if (keys[i] == null || !referenced[i]) {
+          keys[i] = key;
+          hashes[i] = h;
+          referenced[i] = false;
+          return;
+        }
+        referenced[i] = false;
+      }
+    }
+    
+    public int capacity() {
+      return keys.length;
+    }
+    
+    /**
+     * Forget all cached keys, keeping the hit statistics
+     */
+    private void clear() {
+      Arrays.fill(keys, null);
+      Arrays.fill(hashes, 0);
+      Arrays.fill(referenced, false);
+      Arrays.fill(hands, (byte) 0);
+    }
+    
+    private long bytesUsed() {
+      return MemoryFootprint.object(4, 4 + 8 + 8)
+        + MemoryFootprint.array(keys.length, MemoryFootprint.reference())
+        + MemoryFootprint.array(hashes.length, 4)
+        + MemoryFootprint.array(referenced.length, 1)
+        + MemoryFootprint.array(hands.length, 1);
+    }
+    
+    public long hits() {
+      return hits;
+    }
+    
+    public long misses() {
+      return misses;
+    }
+    
+    /**
+     * @return the fraction of lookups answered by the cache
+     */
+    public double hitRatio() {
+      return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+  }
+  
+  /**
+   * Called for every key that is inserted into the tree
+   */
+  private void added(String key) {
+    count++;
+    keyChars += key.length();
+    version++;
+    if (bloom != null) {
+      bloom.add(BloomFilter.hash(key));
+    }
+    if (feed != null) {
+      feed[(int) (version % feed.length)] = key;
+    }
+  }
+  
+  /**
+   * Put a Bloom filter in front of contains, so that most lookups of keys
+   * that are not in the tree return without a descent. The filter is
+   * updated by add and addAll and rebuilt with twice the size when the
+   * tree outgrows it.
+   * @param fpp the wanted false positive rate, e.g. 0.01
+   */
+  public void enableBloomFilter(double fpp) {
+    bloom = new BloomFilter(1, fpp);
+    rebuildBloomFilter();
+  }
+  
+  public void disableBloomFilter() {
+    bloom = null;
+  }
+  
+  /**
+   * @return the Bloom filter with its measured false positive rate, or null
+   */
+  public BloomFilter bloomFilter() {
+    return bloom;
+  }
+  
+  private void checkBloomFilter() {
+    if (bloom != null && count > bloom.capacity()) {
+      rebuildBloomFilter();
+    }
+  }
+  
+  private void rebuildBloomFilter() {
+    bloom.clear(Math.max(1024, 2 * count));
+    for (String key : sortedKeys()) {
+      bloom.add(BloomFilter.hash(key));
+    }
+  }
+  
+  /**
+   * The version is increased by one for every key inserted into the
+   * tree. It starts at 0 for every new tree, including copies.
+   * @return the current version
+   */
+  public long version() {
+    return version;
+  }
+  
+  /**
+   * Start recording the inserted keys so that replicas can follow the tree
+   * with changesSince. The feed is a ring buffer, so only the last
+   * <code>retention</code> versions can be read as changes.
+   * @param retention the number of versions kept in the feed
+   */
+  public void enableChangeFeed(int retention) {
+    if (retention < 1) {
+      throw new BSTException("Retention must be positive");
+    }
+    feed = new String[retention];
+    feedStart = version;
+  }
+  
+  public void disableChangeFeed() {
+    feed = null;
+  }
+  
+  /**
+   * Read the changes made after a given version. If the versions after it
+   * are no longer in the feed (or the feed is not enabled) the result is a
+   * snapshot of all keys instead, which the replica replaces its contents
+   * with. Keys are never removed from a BST, so the changes are additions only.
+   * @param from the version the reader has already seen
+   * @return the keys added after <code>from</code>, or a snapshot
+   * @throws BSTException if <code>from</code> is newer than the tree
+   */
+  public Changes changesSince(long from) {
+    if (from > version || from < 0) {
+      throw new BSTException("No version " + from + ", the tree is at version " + version);
+    }
+    if (feed == null || from < Math.max(feedStart, version - feed.length)) {
+      return new Changes(from, version, true, sortedKeys());
+    }
+    String[] added = new String[(int) (version - from)];
+    for (int i = 0; i < added.length; i++) {
+      added[i] = feed[(int) ((from + 1 + i) % feed.length)];
+    }
+    return new Changes(from, version, false, added);
+  }
+  
+  /**
+   * Keys added between two versions of a tree, or a snapshot of all keys
+   */
+  public static class Changes {
+    private final long from, to;
+    private final boolean snapshot;
+    private final String[] keys;
+    
+    private Changes(long from, long to, boolean snapshot, String[] keys) {
+      this.from = from;
+      this.to = to;
+      this.snapshot = snapshot;
+      this.keys = keys;
+    }
+    
+    public long from() {
+      return from;
+    }
+    
+    /**
+     * @return the version to pass to the next call of changesSince
+     */
+    public long to() {
+      return to;
+    }
+    
+    /**
+     * @return true if keys are all keys of the tree rather than the changes
+     */
+    public boolean isSnapshot() {
+      return snapshot;
+    }
+    
+    /**
+     * @return the added keys in insertion order, or all keys in sorted order
+     * for a snapshot
+     */
+    public String[] keys() {
+      return keys.clone();
+    }
+    
+    /**
+     * Bring a replica up to date. A snapshot replaces the contents of the
+     * replica with a balanced tree.
+     * @param replica the tree to be updated
+     * @return the version the replica is now at
+     */
+    public long applyTo(BST replica) {
+      if (snapshot) {
+        replica.root = null;
+        replica.slab = null;
+        replica.count = 0;
+        replica.keyChars = 0;
+        replica.rotations++;
+        if (replica.cache != null) {
+          replica.cache.clear();  // the replaced keys may be cached
+        }
+      }
+      replica.addAll(keys);
+      if (snapshot && replica.bloom != null) {
+        replica.rebuildBloomFilter();  // drop the bits of the replaced keys
+      }
+      return to;
+    }
+    
+    public String toString() {
+      return (snapshot ? "snapshot at " + to : "changes " + from + ".." + to) + " " + Arrays.toString(keys);
+    }
   }
   
   private static boolean contains(String key, Node r) {
@@ -68,11 +693,37 @@ public class BST {
    * @param key the key to be inserted
    */
   public void add(String key) {
-    root = add(key, root);
+    if (recorder != null) {
+      recorder.add(key);
+    }
+    insert(key);
   }
   
-  private static Node add(String key, Node r) {
+  private void insert(String key) {
+    switch (policy) {
+      case SPLAY:
+        root = splayAdd(key, root);
+        rotations++;
+        break;
+      case TREAP:
+        root = treapAdd(key, root);
+        rotations++;
+        break;
+      default:
+        if (balance > 0) {
+          scapegoatAdd(key);
+        } else if (slab == null) {
+          root = add(key, root);
+        } else if (slab.add(key)) {
+          added(key);
+        }
+    }
+    checkBloomFilter();
+  }
+  
+  private Node add(String key, Node r) {
     if (r==null) {
+      added(key);
       return new Node(key, null, null);
     } else if (key.compareTo(r.key) < 0) {
       r.left = add(key, r.left);
@@ -84,7 +735,599 @@ public class BST {
     return r;
   }
   
+  /**
+   * Search many keys at once. The keys are sorted and resolved in one
+   * shared traversal where every node splits the remaining keys between
+   * its subtrees, so the upper levels of the tree are visited once per
+   * batch instead of once per key. The tree is not restructured and the
+   * lookup cache is not used.
+   * @param keys the keys to be searched, in any order
+   * @return an array where element i tells if keys[i] is in the tree
+   */
+  public boolean[] containsAll(String[] keys) {
+    record(keys);
+    thaw();
+    String[] sorted = sorted(keys);
+    boolean[] found = new boolean[sorted.length];
+    containsAll(root, sorted, 0, sorted.length, found);
+    return inInputOrder(keys, sorted, found);
+  }
+  
+  /**
+   * Parallel version of <code>containsAll</code> for very large batches.
+   * The subtrees and their parts of the batch are handled as fork-join tasks.
+   * @param keys the keys to be searched, in any order
+   * @return an array where element i tells if keys[i] is in the tree
+   */
+  public boolean[] containsAllParallel(String[] keys) {
+    record(keys);
+    thaw();
+    String[] sorted = sorted(keys, true);
+    boolean[] found = new boolean[sorted.length];
+    ForkJoinPool.commonPool().invoke(new ContainsAllTask(root, sorted, 0, sorted.length, found));
+    return inInputOrder(keys, sorted, found);
+  }
+  
+  private static void containsAll(Node r, String[] keys, int lo, int hi, boolean[] found) {
+    while (r != null && lo < hi) {
+      int mid = lowerBound(keys, lo, hi, r.key);
+      int end = mid;
+      while (end < hi && keys[end].equals(r.key)) {
+        found[end++] = true;
+      }
+      if (hi - end < mid - lo) {  // recurse on the smaller range, loop on the larger
+        containsAll(r.right, keys, end, hi, found);
+        r = r.left;
+        hi = mid;
+      } else {
+        containsAll(r.left, keys, lo, mid, found);
+        r = r.right;
+        lo = end;
+      }
+    }
+  }
+  
+  @SuppressWarnings("serial")
+  private static class ContainsAllTask extends RecursiveAction {
+    private static final int THRESHOLD = 1 << 12;
+    private final Node r;
+    private final String[] keys;
+    private final int lo, hi;
+    private final boolean[] found;
+    
+    private ContainsAllTask(Node r, String[] keys, int lo, int hi, boolean[] found) {
+      this.r = r;
+      this.keys = keys;
+      this.lo = lo;
+      this.hi = hi;
+      this.found = found;
+    }
+    
+    protected void compute() {
+      Node r = this.r;
+      int lo = this.lo;
+      int hi = this.hi;
+      while (r != null && hi - lo > THRESHOLD) {
+        int mid = lowerBound(keys, lo, hi, r.key);
+        int end = mid;
+        while (end < hi && keys[end].equals(r.key)) {
+          found[end++] = true;
+        }
+        if (mid - lo <= THRESHOLD) {  // fork only when both sides are large
+          containsAll(r.left, keys, lo, mid, found);
+          r = r.right;
+          lo = end;
+        } else if (hi - end <= THRESHOLD) {
+          containsAll(r.right, keys, end, hi, found);
+          r = r.left;
+          hi = mid;
+        } else {
+          invokeAll(new ContainsAllTask(r.left, keys, lo, mid, found),
+                    new ContainsAllTask(r.right, keys, end, hi, found));
+          return;
+        }
+      }
+      containsAll(r, keys, lo, hi, found);
+    }
+  }
+  
+  /**
+   * Insert many keys at once. The keys are sorted, if they are not already,
+   * and inserted in one shared traversal. Keys that end up in the same
+   * empty subtree are inserted as a balanced subtree. With auto-rebalancing
+   * the whole tree is rebalanced if the batch goes deeper than the limit.
+   * Trees with the SPLAY or TREAP policy insert the keys one by one.
+   * @param keys the keys to be inserted, preferably sorted
+   */
+  public void addAll(String[] keys) {
+    if (recorder != null) {
+      for (String key : keys) {
+        recorder.add(key);
+      }
+    }
+    if (policy != Policy.PLAIN) {
+      for (String key : keys) {
+        insert(key);
+      }
+      return;
+    }
+    thaw();
+    String[] unique = new String[keys.length];
+    int n = 0;
+    for (String key : sorted(keys)) {
+      if (n == 0 || !key.equals(unique[n - 1])) {
+        unique[n++] = key;
+      }
+    }
+    int[] deepest = new int[1];
+    root = addAll(root, unique, 0, n, 1, deepest);
+    if (balance > 0 && deepest[0] > balance * Math.log(count) / Math.log(2)) {
+      rebalance();
+    }
+    checkBloomFilter();
+  }
+  
+  /**
+   * @param depth the depth of r, the root having depth 1
+   * @param deepest set to the depth of the deepest inserted key, if deeper
+   */
+  private Node addAll(Node r, String[] keys, int lo, int hi, int depth, int[] deepest) {
+    if (lo >= hi) {
+      return r;
+    } else if (r == null) {
+      for (int i = lo; i < hi; i++) {
+        added(keys[i]);
+      }
+      // the balanced subtree has floor(log2(hi - lo)) + 1 levels
+      deepest[0] = Math.max(deepest[0], depth + 31 - Integer.numberOfLeadingZeros(hi - lo));
+      return build(keys, lo, hi);
+    }
+    int mid = lowerBound(keys, lo, hi, r.key);
+    int end = mid < hi && keys[mid].equals(r.key) ? mid + 1 : mid;
+    r.left = addAll(r.left, keys, lo, mid, depth + 1, deepest);
+    r.right = addAll(r.right, keys, end, hi, depth + 1, deepest);
+    return r;
+  }
+  
+  /**
+   * Record a batch of lookups as single contains operations
+   */
+  private void record(String[] keys) {
+    if (recorder != null) {
+      for (String key : keys) {
+        recorder.contains(key);
+      }
+    }
+  }
+  
+  /**
+   * The keys in sorted order, the array itself if it is already sorted
+   */
+  private static String[] sorted(String[] keys) {
+    return sorted(keys, false);
+  }
+  
+  private static String[] sorted(String[] keys, boolean parallel) {
+    for (int i = 1; i < keys.length; i++) {
+      if (keys[i - 1].compareTo(keys[i]) > 0) {
+        String[] sorted = keys.clone();
+        if (parallel) {
+          Arrays.parallelSort(sorted);
+        } else {
+          Arrays.sort(sorted);
+        }
+        return sorted;
+      }
+    }
+    return keys;
+  }
+  
+  private static boolean[] inInputOrder(String[] keys, String[] sorted, boolean[] found) {
+    if (sorted == keys) {
+      return found;
+    }
+    boolean[] result = new boolean[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      result[i] = found[lowerBound(sorted, 0, sorted.length, keys[i])];
+    }
+    return result;
+  }
+  
+  /**
+   * The first position in keys[lo..hi) whose key is not less than key
+   */
+  private static int lowerBound(String[] keys, int lo, int hi, String key) {
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (keys[mid].compareTo(key) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+  
+  /**
+   * Create a cursor over the keys of this tree. The cursor is not
+   * positioned until first, last or seek is called.
+   * @return a new cursor
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+  
+  /**
+   * A finger into the tree for access with sequential locality.
+   * <p>
+   * The cursor keeps the path from the root to its current node together
+   * with the key range of every subtree on the path. seek only climbs
+   * until the subtree covers the new key and descends from there. This is
+   * not a finger search: a single seek costs O(log n) in a balanced tree
+   * in the worst case, since even neighbouring keys can lie on either side
+   * of the root. In a run of seeks in ascending or descending order every
+   * subtree is entered and left at most once, so a sweep whose seeks are
+   * about d positions apart costs amortized O(log d) per seek. next and
+   * prev are amortized O(1).
+   * <p>
+   * Inserting keys never invalidates the path, since new nodes are only
+   * added as leaves. If the tree has been restructured since the last move
+   * (by the SPLAY or TREAP policy) the cursor finds its key again from the
+   * root. The cursor itself never restructures the tree and does not use
+   * the lookup cache.
+   */
+  public class Cursor {
+    private Node[] path = new Node[32];
+    private String[] low = new String[32];    // exclusive bounds of the subtree at each level,
+    private String[] high = new String[32];   // null if unbounded
+    private int depth;
+    private boolean positioned;
+    private int seen = rotations;
+    
+    private Cursor() {
+    }
+    
+    /**
+     * @return true if the cursor is at a key, false before the first
+     * move or after moving past either end
+     */
+    public boolean valid() {
+      return positioned;
+    }
+    
+    /**
+     * @return the key at the cursor
+     * @throws BSTException if the cursor is not at a key
+     */
+    public String key() {
+      if (!positioned) {
+        throw new BSTException("Cursor is not at a key");
+      }
+      return path[depth - 1].key;
+    }
+    
+    /**
+     * Move to the smallest key
+     * @return false if the tree is empty
+     */
+    public boolean first() {
+      depth = 0;
+      thaw();
+      seen = rotations;
+      if (root == null) {
+        return positioned = false;
+      }
+      push(root, null, null);
+      leftmost();
+      return positioned = true;
+    }
+    
+    /**
+     * Move to the largest key
+     * @return false if the tree is empty
+     */
+    public boolean last() {
+      depth = 0;
+      thaw();
+      seen = rotations;
+      if (root == null) {
+        return positioned = false;
+      }
+      push(root, null, null);
+      rightmost();
+      return positioned = true;
+    }
+    
+    /**
+     * Move to the smallest key that is greater than or equal to a given key.
+     * If there is no such key the cursor is no longer valid, but it keeps
+     * its place in the tree for the next seek.
+     * @param key the key to be searched
+     * @return true if the key is in the tree
+     */
+    public boolean seek(String key) {
+      if (seen != rotations) {
+        depth = 0;
+        seen = rotations;
+      }
+      if (depth == 0) {
+        thaw();
+        seen = rotations;
+        if (root == null) {
+          return positioned = false;
+        }
+        push(root, null, null);
+      }
+      // Climb until the subtree covers the key. Moving right only the upper
+      // bounds can exclude the key, moving left only the lower bounds.
+      if (key.compareTo(path[depth - 1].key) > 0) {
+        while (depth > 1 && high[depth - 1] != null && key.compareTo(high[depth - 1]) >= 0) {
+          depth--;
+        }
+      } else {
+        while (depth > 1 && low[depth - 1] != null && key.compareTo(low[depth - 1]) <= 0) {
+          depth--;
+        }
+      }
+      while (true) {
+        Node r = path[depth - 1];
+        int cmp = key.compareTo(r.key);
+        if (cmp == 0) {
+          positioned = true;
+          return true;
+        }
+        Node child = cmp < 0 ? r.left : r.right;
+        if (child == null) {
+          break;
+        }
+        push(child, cmp < 0 ? low[depth - 1] : r.key, cmp < 0 ? r.key : high[depth - 1]);
+      }
+      // The key is not in the tree, its successor is the last node on the
+      // path that is greater than the key
+      if (key.compareTo(path[depth - 1].key) < 0) {
+        positioned = true;
+      } else {
+        int up = ancestorOfLeftChild();
+        positioned = up > 0;
+        if (positioned) {
+          depth = up;
+        }
+      }
+      return false;
+    }
+    
+    /**
+     * Move to the next key in ascending order
+     * @return false if the cursor was at the largest key
+     * @throws BSTException if the cursor is not at a key
+     */
+    public boolean next() {
+      key();
+      resync();
+      Node r = path[depth - 1];
+      if (r.right != null) {
+        push(r.right, r.key, high[depth - 1]);
+        leftmost();
+        return true;
+      }
+      int up = ancestorOfLeftChild();
+      if (up == 0) {
+        return positioned = false;
+      }
+      depth = up;
+      return true;
+    }
+    
+    /**
+     * Move to the previous key in ascending order
+     * @return false if the cursor was at the smallest key
+     * @throws BSTException if the cursor is not at a key
+     */
+    public boolean prev() {
+      key();
+      resync();
+      Node r = path[depth - 1];
+      if (r.left != null) {
+        push(r.left, low[depth - 1], r.key);
+        rightmost();
+        return true;
+      }
+      int i = depth - 1;
+      while (i > 0 && path[i - 1].left == path[i]) {
+        i--;
+      }
+      if (i == 0) {
+        return positioned = false;
+      }
+      depth = i;
+      return true;
+    }
+    
+    /**
+     * Find the current key from the root again if the tree has been
+     * restructured since the last move
+     */
+    private void resync() {
+      if (seen != rotations) {
+        seek(path[depth - 1].key);
+      }
+    }
+    
+    /**
+     * @return the depth of the deepest node on the path whose left subtree
+     * holds the current node, or 0 if there is none
+     */
+    private int ancestorOfLeftChild() {
+      int i = depth - 1;
+      while (i > 0 && path[i - 1].right == path[i]) {
+        i--;
+      }
+      return i;
+    }
+    
+    private void leftmost() {
+      for (Node r = path[depth - 1]; r.left != null; r = r.left) {
+        push(r.left, low[depth - 1], r.key);
+      }
+    }
+    
+    private void rightmost() {
+      for (Node r = path[depth - 1]; r.right != null; r = r.right) {
+        push(r.right, r.key, high[depth - 1]);
+      }
+    }
+    
+    private void push(Node r, String lo, String hi) {
+      if (depth == path.length) {
+        path = Arrays.copyOf(path, 2 * depth);
+        low = Arrays.copyOf(low, 2 * depth);
+        high = Arrays.copyOf(high, 2 * depth);
+      }
+      path[depth] = r;
+      low[depth] = lo;
+      high[depth] = hi;
+      depth++;
+    }
+  }
+  
+  /**
+   * Top-down splay: restructure the tree so that the key, or the last node
+   * on its search path, becomes the root
+   * @return the new root
+   */
+  private static Node splay(String key, Node t) {
+    if (t == null) {
+      return null;
+    }
+    Node header = new Node(null, null, null);
+    Node l = header, r = header;
+    while (true) {
+      int cmp = key.compareTo(t.key);
+      if (cmp < 0) {
+        if (t.left == null) {
+          break;
+        }
+        if (key.compareTo(t.left.key) < 0) {
+          t = rotateRight(t);
+          if (t.left == null) {
+            break;
+          }
+        }
+        r.left = t;
+        r = t;
+        t = t.left;
+      } else if (cmp > 0) {
+        if (t.right == null) {
+          break;
+        }
+        if (key.compareTo(t.right.key) > 0) {
+          t = rotateLeft(t);
+          if (t.right == null) {
+            break;
+          }
+        }
+        l.right = t;
+        l = t;
+        t = t.right;
+      } else {
+        break;
+      }
+    }
+    l.right = t.left;
+    r.left = t.right;
+    t.left = header.right;
+    t.right = header.left;
+    return t;
+  }
+  
+  private Node splayAdd(String key, Node r) {
+    if (r == null) {
+      added(key);
+      return new Node(key, null, null);
+    }
+    r = splay(key, r);
+    int cmp = key.compareTo(r.key);
+    if (cmp != 0) {
+      added(key);
+    }
+    if (cmp < 0) {
+      Node n = new Node(key, r.left, r);
+      r.left = null;
+      return n;
+    } else if (cmp > 0) {
+      Node n = new Node(key, r, r.right);
+      r.right = null;
+      return n;
+    } else {
+      return r;
+    }
+  }
+  
+  private Node treapAdd(String key, Node r) {
+    if (r == null) {
+      added(key);
+      return new Node(key, null, null, random.nextInt());
+    }
+    int cmp = key.compareTo(r.key);
+    if (cmp < 0) {
+      r.left = treapAdd(key, r.left);
+      if (r.left.priority > r.priority) {
+        r = rotateRight(r);
+      }
+    } else if (cmp > 0) {
+      r.right = treapAdd(key, r.right);
+      if (r.right.priority > r.priority) {
+        r = rotateLeft(r);
+      }
+    }
+    return r;
+  }
+  
+  /**
+   * Give a key in a treap a new priority if it is higher than the current
+   * one and rotate the node up to restore the heap order.
+   * Frequently accessed keys thereby drift towards the root.
+   */
+  private static Node boost(String key, int priority, Node r) {
+    int cmp = key.compareTo(r.key);
+    if (cmp < 0) {
+      r.left = boost(key, priority, r.left);
+      if (r.left.priority > r.priority) {
+        r = rotateRight(r);
+      }
+    } else if (cmp > 0) {
+      r.right = boost(key, priority, r.right);
+      if (r.right.priority > r.priority) {
+        r = rotateLeft(r);
+      }
+    } else if (priority > r.priority) {
+      r.priority = priority;
+    }
+    return r;
+  }
+  
+  private static Node rotateRight(Node r) {
+    Node l = r.left;
+    r.left = l.right;
+    l.right = r;
+    return l;
+  }
+  
+  private static Node rotateLeft(Node r) {
+    Node l = r.right;
+    r.right = l.left;
+    l.left = r;
+    return l;
+  }
+  
   public String toString() {
+    if (slab != null) {
+      StringBuilder sb = new StringBuilder("<");
+      for (String key : slab.sortedKeys()) {
+        sb.append(' ').append(key);
+      }
+      return sb.append('>').toString();
+    }
     return "<" + toString(root) + ">";
   }
   
@@ -103,7 +1346,7 @@ public class BST {
    * @return the number of nodes
    */
   public int size() {
-    return size(root); 
+    return count;
   }
   
   public static int size(Node n){
@@ -113,6 +1356,35 @@ public class BST {
       return  size(n.left) + 1 + size(n.right);
   }
   
+  private static long keyChars(Node r) {
+    return r == null ? 0 : keyChars(r.left) + r.key.length() + keyChars(r.right);
+  }
+  
+  /**
+   * Estimate the memory used by the tree from maintained counters
+   * @return the footprint; other memory is the tree object, the lookup
+   * cache, the Bloom filter and the change feed
+   */
+  public MemoryFootprint memoryFootprint() {
+    long other = MemoryFootprint.object(6, 4 + 4 + 8 + 8 + 8 + 8);
+    if (cache != null) {
+      other += cache.bytesUsed();
+    }
+    if (bloom != null) {
+      other += bloom.memoryFootprint();
+    }
+    if (feed != null) {
+      other += MemoryFootprint.array(feed.length, MemoryFootprint.reference());
+    }
+    if (slab != null) {
+      return new MemoryFootprint("BST (slab)", count, 0, slab.bytesUsed(),
+                                 MemoryFootprint.strings(count, keyChars), other);
+    }
+    // key, left, right and priority
+    return new MemoryFootprint("BST", count, count, count * MemoryFootprint.object(3, 4),
+                               MemoryFootprint.strings(count, keyChars), other);
+  }
+  
   
   /**
    * Compute the height.
@@ -121,7 +1393,7 @@ public class BST {
    * @return the height
    */ 
   public int height() {
-    return height(root);
+    return slab != null ? slab.height() : height(root);
   }
   
   public static int height(Node r){
@@ -137,6 +1409,16 @@ public class BST {
    * @return the smallest key
    */
   public String smallest() {
+    if (slab != null) {
+      int i = slab.n == 0 ? -1 : 0;
+      while (i >= 0 && slab.left[i] >= 0) {
+        i = slab.left[i];
+      }
+      if (i < 0) {
+        throw new BSTException("Empty");
+      }
+      return slab.keys[i];
+    }
     return smallest(root);
     
   }
@@ -158,6 +1440,10 @@ public class BST {
    */
   public ArrayList<String> toArrayList() {
     ArrayList<String> arra = new ArrayList<String>();
+    if (slab != null) {
+      arra.addAll(Arrays.asList(slab.sortedKeys()));
+      return arra;
+    }
     toArrayList(root, arra);
     return arra;
   }
@@ -176,15 +1462,88 @@ public class BST {
    * @return a tree containing a copy of this tree
    */
   public BST copy() {
-    BST newTree = new BST(copy(root));  
+    if (slab != null) {
+      BST newTree = new BST(policy);
+      newTree.slab = slab.copy();
+      newTree.count = count;
+      newTree.keyChars = keyChars;
+      return newTree;
+    }
+    BST newTree = new BST(copy(root), policy);  
     return newTree;
   }
   
-  private Node copy(Node r){
+  private static Node copy(Node r){
     if(r == null){
       return null;
     }else
-      return new Node(r.key, copy(r.left) ,copy(r.right));
+      return new Node(r.key, copy(r.left) ,copy(r.right), r.priority);
+  }
+  
+  /**
+   * Store the tree in slab mode: the keys and the child indices of all
+   * nodes are kept in three parallel arrays instead of one object per
+   * node. copy is then three array clones, and the copy is released
+   * together with its arrays. contains, add, size, height, smallest,
+   * toArrayList, toString, equals, memoryFootprint and the set operations
+   * work on the arrays; the other methods turn the tree back into nodes
+   * first. The branching structure is kept in both directions.
+   * @throws BSTException for the SPLAY and TREAP policies and with
+   * auto-rebalancing, which move nodes
+   */
+  public void useSlab() {
+    if (policy != Policy.PLAIN || balance > 0) {
+      throw new BSTException("Slab mode needs the PLAIN policy without auto-rebalancing");
+    }
+    if (slab == null) {
+      slab = Slab.of(root, count);
+      root = null;
+      rotations++;
+    }
+  }
+  
+  /**
+   * @return true if the tree is in slab mode
+   */
+  public boolean isSlab() {
+    return slab != null;
+  }
+  
+  /**
+   * Leave slab mode, for the methods that work on nodes
+   */
+  private void thaw() {
+    if (slab != null) {
+      root = slab.toNodes();
+      slab = null;
+      rotations++;
+    }
+  }
+  
+  
+  /**
+   * Convert the tree into an <code>OffHeapBST</code> with the same
+   * structure and keys. This is a conversion, not a faster copy: every
+   * key is copied character by character, so it takes longer than
+   * <code>copy</code>, and the result has only the methods of
+   * <code>OffHeapBST</code>. Copies of the result are bulk copies of its
+   * buffers and allocate nothing per node.
+   * @return an off-heap tree with the same structure and keys as this tree
+   */
+  public OffHeapBST toOffHeap() {
+    thaw();
+    OffHeapBST result = new OffHeapBST(size());
+    result.setRoot(toOffHeap(root, result));
+    return result;
+  }
+  
+  private static int toOffHeap(Node r, OffHeapBST result) {
+    if (r == null) {
+      return -1;
+    }
+    int n = result.newNode(r.key);
+    result.setChildren(n, toOffHeap(r.left, result), toOffHeap(r.right, result));
+    return n;
   }
   
   
@@ -195,11 +1554,16 @@ public class BST {
    * @return <code>true</code> if the trees are equal, else <code>false</code
    */
   public boolean equals(BST t) {
+    if (slab != null && t.slab != null) {
+      return slab.sameShape(t.slab);
+    }
+    thaw();
+    t.thaw();
     Node r = t.root;
     return equals(r, root);
   }
   
-  private boolean equals(Node r, Node s){
+  private static boolean equals(Node r, Node s){
     if(r == null && s == null){
       return true;
     }else if(r == null){
@@ -234,10 +1598,11 @@ public class BST {
    */
   public int ipl() {
     int x = 0;
+    thaw();
     return ipl(this.root, x);
   }
   
-  private int ipl(Node r, int x) {
+  private static int ipl(Node r, int x) {
     if (r == null) {
       return 0;
     } else {
@@ -246,6 +1611,525 @@ public class BST {
     }
   }
   
+  /**
+   * Restructure the tree into a perfectly balanced tree with the
+   * Day-Stout-Warren algorithm: the tree is rotated into a sorted chain
+   * (the vine) which is then compressed into a balanced tree. Takes O(n)
+   * time and no extra space except one temporary node, and reuses the
+   * nodes of the tree.
+   * @throws BSTException for the TREAP policy, whose shape is given by the priorities
+   */
+  public void rebalance() {
+    if (policy == Policy.TREAP) {
+      throw new BSTException("A treap is balanced by its priorities");
+    }
+    thaw();
+    root = rebalance(root, count);
+    rotations++;
+  }
+  
+  /**
+   * Rebalance the tree if its internal path length is too far from the
+   * smallest possible for its size
+   * @param maxRatio the largest accepted ratio between ipl() and the ipl of
+   * a perfectly balanced tree, e.g. 1.5
+   * @return true if the tree was rebalanced
+   */
+  public boolean rebalanceIfSkewed(double maxRatio) {
+    long best = 0;
+    for (long level = 1, width = 1, left = count; left > 0; level++, width *= 2) {
+      best += level * Math.min(width, left);
+      left -= Math.min(width, left);
+    }
+    thaw();
+    if (pathLength(root, maxRatio * best) <= maxRatio * best) {
+      return false;
+    }
+    rebalance();
+    return true;
+  }
+  
+  /**
+   * Iterative internal path length as a long, for trees too deep for
+   * ipl(). The walk stops as soon as the sum exceeds the limit.
+   * @return the internal path length, or a value above limit
+   */
+  private static long pathLength(Node r, double limit) {
+    if (r == null) {
+      return 0;
+    }
+    Node[] nodes = new Node[64];
+    int[] depths = new int[64];
+    nodes[0] = r;
+    depths[0] = 1;
+    int n = 1;
+    long sum = 0;
+    while (n > 0 && sum <= limit) {
+      n--;
+      Node node = nodes[n];
+      int depth = depths[n];
+      sum += depth;
+      if (n + 2 > nodes.length) {
+        nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+        depths = Arrays.copyOf(depths, 2 * depths.length);
+      }
+      if (node.left != null) {
+        nodes[n] = node.left;
+        depths[n++] = depth + 1;
+      }
+      if (node.right != null) {
+        nodes[n] = node.right;
+        depths[n++] = depth + 1;
+      }
+    }
+    return sum;
+  }
+  
+  /**
+   * Keep the height of the tree within c * log2(size()) while adding keys,
+   * as in a scapegoat tree. When a key is inserted deeper than that, the
+   * subtree of the nearest ancestor whose one child holds more than a
+   * fraction 2^(-1/c) of its nodes is rebalanced. Adding stays amortized
+   * O(log n). Enabling rebalances the whole tree once. addAll, and so a
+   * change feed applied to the tree, checks the height after the whole
+   * batch and rebalances the whole tree if it is exceeded.
+   * @param c the height limit as a multiple of log2(size()), greater than 1,
+   * or 0 to turn auto-rebalancing off
+   * @throws BSTException for the SPLAY and TREAP policies, which balance the tree themselves
+   */
+  public void autoRebalance(double c) {
+    if (c != 0 && !(c > 1)) {
+      throw new BSTException("The height limit must be more than log2(size())");
+    } else if (c != 0 && policy != Policy.PLAIN) {
+      throw new BSTException("Auto-rebalancing needs the PLAIN policy");
+    }
+    balance = c;
+    if (c > 0) {
+      rebalance();
+    }
+  }
+  
+  private void scapegoatAdd(String key) {
+    Node[] path = new Node[64];
+    int depth = 0;
+    Node r = root;
+    while (r != null) {
+      int cmp = key.compareTo(r.key);
+      if (cmp == 0) {
+        return;
+      }
+      if (depth == path.length) {
+        path = Arrays.copyOf(path, 2 * depth);
+      }
+      path[depth++] = r;
+      r = cmp < 0 ? r.left : r.right;
+    }
+    added(key);
+    Node n = new Node(key, null, null);
+    if (depth == 0) {
+      root = n;
+      return;
+    } else if (key.compareTo(path[depth - 1].key) < 0) {
+      path[depth - 1].left = n;
+    } else {
+      path[depth - 1].right = n;
+    }
+    if (depth + 1 <= balance * Math.log(count) / Math.log(2)) {
+      return;
+    }
+    // Too deep: find the nearest unbalanced ancestor, measuring subtree
+    // sizes on the way up
+    double alpha = Math.pow(2, -1 / balance);
+    int size = 1;
+    Node child = n;
+    int scapegoat = depth - 1;
+    while (true) {
+      Node p = path[scapegoat];
+      int total = size + 1 + size(p.left == child ? p.right : p.left);
+      if (size > alpha * total) {
+        size = total;
+        break;
+      } else if (scapegoat == 0) {
+        return;  // cannot happen when the height limit is exceeded
+      }
+      size = total;
+      child = p;
+      scapegoat--;
+    }
+    Node subtree = rebalance(path[scapegoat], size);
+    if (scapegoat == 0) {
+      root = subtree;
+    } else if (path[scapegoat - 1].left == path[scapegoat]) {
+      path[scapegoat - 1].left = subtree;
+    } else {
+      path[scapegoat - 1].right = subtree;
+    }
+    rotations++;
+  }
+  
+  /**
+   * Day-Stout-Warren rebalancing of a subtree with n nodes
+   * @return the root of the balanced subtree
+   */
+  private static Node rebalance(Node r, int n) {
+    Node header = new Node(null, null, r);
+    // Rotate right until no node has a left child
+    Node tail = header;
+    Node rest = r;
+    while (rest != null) {
+      if (rest.left == null) {
+        tail = rest;
+        rest = rest.right;
+      } else {
+        Node l = rest.left;
+        rest.left = l.right;
+        l.right = rest;
+        rest = l;
+        tail.right = l;
+      }
+    }
+    // Left rotations on every other node of the vine, first for the nodes
+    // on the bottom level and then halving until the tree is balanced
+    int leaves = n + 1 - Integer.highestOneBit(n + 1);
+    compress(header, leaves);
+    for (int m = n - leaves; m > 1; m /= 2) {
+      compress(header, m / 2);
+    }
+    return header.right;
+  }
+  
+  private static void compress(Node header, int m) {
+    Node scanner = header;
+    for (int i = 0; i < m; i++) {
+      Node child = scanner.right;
+      scanner.right = child.right;
+      scanner = scanner.right;
+      child.right = scanner.left;
+      scanner.left = child;
+    }
+  }
+  
+  /**
+   * Create a tree containing the keys found in this tree or in another tree.
+   * Both trees are flattened to sorted arrays, merged in linear time and
+   * the result is built as a balanced tree in parallel.
+   * Runs in O(n+m) time for trees with n and m nodes, whatever their shape.
+   * @param t the other tree
+   * @return a new balanced tree, with the PLAIN policy, with the union of the keys
+   */
+  public BST union(BST t) {
+    if (recorder != null) {
+      recorder.merge(t.size());
+    }
+    String[] a = sortedKeys();
+    String[] b = t.sortedKeys();
+    String[] c = new String[a.length + b.length];
+    int i = 0, j = 0, k = 0;
+    while (i < a.length && j < b.length) {
+      int cmp = a[i].compareTo(b[j]);
+      if (cmp < 0) {
+        c[k++] = a[i++];
+      } else if (cmp > 0) {
+        c[k++] = b[j++];
+      } else {
+        c[k++] = a[i++];
+        j++;
+      }
+    }
+    while (i < a.length) {
+      c[k++] = a[i++];
+    }
+    while (j < b.length) {
+      c[k++] = b[j++];
+    }
+    return build(c, k);
+  }
+  
+  /**
+   * Create a tree containing the keys found in both this tree and another tree.
+   * Runs in O(n+m) time.
+   * @param t the other tree
+   * @return a new balanced tree, with the PLAIN policy, with the intersection of the keys
+   */
+  public BST intersection(BST t) {
+    String[] a = sortedKeys();
+    String[] b = t.sortedKeys();
+    String[] c = new String[Math.min(a.length, b.length)];
+    int i = 0, j = 0, k = 0;
+    while (i < a.length && j < b.length) {
+      int cmp = a[i].compareTo(b[j]);
+      if (cmp < 0) {
+        i++;
+      } else if (cmp > 0) {
+        j++;
+      } else {
+        c[k++] = a[i++];
+        j++;
+      }
+    }
+    return build(c, k);
+  }
+  
+  /**
+   * Create a tree containing the keys of this tree that are not in another tree.
+   * Runs in O(n+m) time.
+   * @param t the other tree
+   * @return a new balanced tree, with the PLAIN policy, with the difference of the keys
+   */
+  public BST difference(BST t) {
+    String[] a = sortedKeys();
+    String[] b = t.sortedKeys();
+    String[] c = new String[a.length];
+    int i = 0, j = 0, k = 0;
+    while (i < a.length) {
+      int cmp = j < b.length ? a[i].compareTo(b[j]) : -1;
+      if (cmp < 0) {
+        c[k++] = a[i++];
+      } else if (cmp > 0) {
+        j++;
+      } else {
+        i++;
+        j++;
+      }
+    }
+    return build(c, k);
+  }
+  
+  /**
+   * The keys of this tree in symmetric order, in either mode
+   */
+  private String[] sortedKeys() {
+    return slab != null ? slab.sortedKeys() : keys(root);
+  }
+  
+  /**
+   * The keys of a tree in symmetric order. Iterative, so degenerate trees
+   * do not overflow the stack.
+   */
+  private static String[] keys(Node r) {
+    ArrayList<String> result = new ArrayList<String>();
+    ArrayDeque<Node> stack = new ArrayDeque<Node>();
+    while (r != null || !stack.isEmpty()) {
+      while (r != null) {
+        stack.push(r);
+        r = r.left;
+      }
+      r = stack.pop();
+      result.add(r.key);
+      r = r.right;
+    }
+    return result.toArray(new String[result.size()]);
+  }
+  
+  /**
+   * Build a balanced tree from the first n keys of a sorted array
+   */
+  private static BST build(String[] keys, int n) {
+    return new BST(ForkJoinPool.commonPool().invoke(new BuildTask(keys, 0, n)));
+  }
+  
+  private static Node build(String[] keys, int lo, int hi) {
+    if (lo >= hi) {
+      return null;
+    }
+    int mid = (lo + hi) >>> 1;
+    return new Node(keys[mid], build(keys, lo, mid), build(keys, mid + 1, hi));
+  }
+  
+  @SuppressWarnings("serial")  // like the traversal tasks below
+  private static class BuildTask extends RecursiveTask<Node> {
+    private static final int THRESHOLD = 1 << 13;
+    private final String[] keys;
+    private final int lo, hi;
+    
+    private BuildTask(String[] keys, int lo, int hi) {
+      this.keys = keys;
+      this.lo = lo;
+      this.hi = hi;
+    }
+    
+    protected Node compute() {
+      if (hi - lo <= THRESHOLD) {
+        return build(keys, lo, hi);
+      }
+      int mid = (lo + hi) >>> 1;
+      BuildTask left = new BuildTask(keys, lo, mid);
+      left.fork();
+      Node right = new BuildTask(keys, mid + 1, hi).compute();
+      return new Node(keys[mid], left.join(), right);
+    }
+  }
+  
+  /**
+   * Create a view of this tree whose size, height, ipl, copy and equals
+   * run in parallel in the common fork-join pool
+   * @return a parallel view of this tree
+   */
+  public Parallel parallel() {
+    return new Parallel(ForkJoinPool.commonPool());
+  }
+  
+  /**
+   * Create a view of this tree whose traversals run in a given pool
+   * @param pool the pool running the traversals
+   * @return a parallel view of this tree
+   */
+  public Parallel parallel(ForkJoinPool pool) {
+    return new Parallel(pool);
+  }
+  
+  /**
+   * View of a tree with parallel versions of the full traversals.
+   * The traversals fork on the left and right subtrees down to a depth
+   * that gives a few tasks per worker, below which the sequential
+   * methods are used. The results are the same as for the sequential methods.
+   */
+  public class Parallel {
+    private final ForkJoinPool pool;
+    private final int splitDepth;
+    
+    private Parallel(ForkJoinPool pool) {
+      this.pool = pool;
+      this.splitDepth = 35 - Integer.numberOfLeadingZeros(pool.getParallelism());
+    }
+    
+    public int size() {
+      thaw();
+      return pool.invoke(new SizeTask(root, splitDepth));
+    }
+    
+    public int height() {
+      thaw();
+      return pool.invoke(new HeightTask(root, splitDepth));
+    }
+    
+    public int ipl() {
+      thaw();
+      return pool.invoke(new IplTask(root, 0, splitDepth));
+    }
+    
+    public BST copy() {
+      thaw();
+      return new BST(pool.invoke(new CopyTask(root, splitDepth)), policy);
+    }
+    
+    public boolean equals(BST t) {
+      thaw();
+      t.thaw();
+      return pool.invoke(new EqualsTask(t.root, root, splitDepth));
+    }
+  }
+  
+  @SuppressWarnings("serial")  // fork-join tasks are never serialized, and Node is not Serializable
+  private static class SizeTask extends RecursiveTask<Integer> {
+    private final Node r;
+    private final int split;
+    
+    private SizeTask(Node r, int split) {
+      this.r = r;
+      this.split = split;
+    }
+    
+    protected Integer compute() {
+      if (r == null || split == 0) {
+        return size(r);
+      }
+      SizeTask left = new SizeTask(r.left, split - 1);
+      left.fork();
+      int right = new SizeTask(r.right, split - 1).compute();
+      return left.join() + 1 + right;
+    }
+  }
+  
+  @SuppressWarnings("serial")
+  private static class HeightTask extends RecursiveTask<Integer> {
+    private final Node r;
+    private final int split;
+    
+    private HeightTask(Node r, int split) {
+      this.r = r;
+      this.split = split;
+    }
+    
+    protected Integer compute() {
+      if (r == null || split == 0) {
+        return height(r);
+      }
+      HeightTask left = new HeightTask(r.left, split - 1);
+      left.fork();
+      int right = new HeightTask(r.right, split - 1).compute();
+      return 1 + Math.max(left.join(), right);
+    }
+  }
+  
+  @SuppressWarnings("serial")
+  private static class IplTask extends RecursiveTask<Integer> {
+    private final Node r;
+    private final int x;
+    private final int split;
+    
+    private IplTask(Node r, int x, int split) {
+      this.r = r;
+      this.x = x;
+      this.split = split;
+    }
+    
+    protected Integer compute() {
+      if (r == null || split == 0) {
+        return ipl(r, x);
+      }
+      IplTask left = new IplTask(r.left, x + 1, split - 1);
+      left.fork();
+      int right = new IplTask(r.right, x + 1, split - 1).compute();
+      return left.join() + x + 1 + right;
+    }
+  }
+  
+  @SuppressWarnings("serial")
+  private static class CopyTask extends RecursiveTask<Node> {
+    private final Node r;
+    private final int split;
+    
+    private CopyTask(Node r, int split) {
+      this.r = r;
+      this.split = split;
+    }
+    
+    protected Node compute() {
+      if (r == null || split == 0) {
+        return copy(r);
+      }
+      CopyTask left = new CopyTask(r.left, split - 1);
+      left.fork();
+      Node right = new CopyTask(r.right, split - 1).compute();
+      return new Node(r.key, left.join(), right, r.priority);
+    }
+  }
+  
+  @SuppressWarnings("serial")
+  private static class EqualsTask extends RecursiveTask<Boolean> {
+    private final Node r, s;
+    private final int split;
+    
+    private EqualsTask(Node r, Node s, int split) {
+      this.r = r;
+      this.s = s;
+      this.split = split;
+    }
+    
+    protected Boolean compute() {
+      if (r == null || s == null || split == 0) {
+        return BST.equals(r, s);
+      } else if (!r.key.equals(s.key)) {
+        return false;
+      }
+      EqualsTask left = new EqualsTask(r.left, s.left, split - 1);
+      left.fork();
+      boolean right = new EqualsTask(r.right, s.right, split - 1).compute();
+      return left.join() && right;
+    }
+  }
+  
   /**
    * Main-method showing calls to and results from all methods above
    */
@@ -272,6 +2156,76 @@ public class BST {
     newBst1.add("U");
     System.out.println("Check if two trees equals each other: " + bst1.equals(newBst1));
     System.out.println("The internal path length: " + bst1.ipl());
+    System.out.println("Parallel size, height, ipl: " + bst1.parallel().size() + ", "
+                         + bst1.parallel().height() + ", " + bst1.parallel().ipl());
+    System.out.println("Parallel copy equals: " + bst1.parallel().equals(bst1.parallel().copy()));
+    System.out.println("To off-heap: " + bst1.toOffHeap());
+    bst1.enableLookupCache(16);
+    for (int i = 0; i < 10; i++) {
+      bst1.contains("KK");
+    }
+    System.out.println("Cache hit ratio after 10 lookups of KK: " + bst1.lookupCache().hitRatio());
+    for (Policy policy : Policy.values()) {
+      BST t = new BST(policy);
+      for (String key : new String[] {"M", "C", "T", "A", "E", "R", "X"}) {
+        t.add(key);
+      }
+      t.contains("E");
+      t.contains("E");
+      System.out.println(policy + " tree " + t + ", depth of E after two lookups: " + t.depth("E"));
+    }
+    System.out.println("containsAll(T, B, A): " + Arrays.toString(bst1.containsAll(new String[] {"T", "B", "A"})));
+    BST batch = new BST();
+    batch.addAll(new String[] {"A", "B", "C", "D", "E", "F", "G"});
+    System.out.println("addAll(A..G): " + batch + ", height " + batch.height());
+    Cursor cursor = bst1.cursor();
+    System.out.print("Cursor from B:");
+    cursor.seek("B");
+    for (boolean more = cursor.valid(); more; more = cursor.next()) {
+      System.out.print(" " + cursor.key());
+    }
+    System.out.println(", seek(KK): " + cursor.seek("KK") + ", prev: " + (cursor.prev() ? cursor.key() : "none"));
+    BST source = new BST();
+    BST replica = new BST();
+    source.enableChangeFeed(4);
+    source.add("M");
+    source.add("C");
+    long seen = source.changesSince(0).applyTo(replica);
+    source.add("X");
+    source.add("C");
+    System.out.println("Change feed: " + source.changesSince(seen));
+    seen = source.changesSince(seen).applyTo(replica);
+    for (String key : new String[] {"A", "B", "D", "E", "F"}) {
+      source.add(key);
+    }
+    System.out.println("Change feed after 5 more: " + source.changesSince(seen));
+    seen = source.changesSince(seen).applyTo(replica);
+    System.out.println("Replica at version " + seen + ": " + replica + ", same as source: " + replica.sameContents(source));
+    BST cached = new BST();
+    cached.enableLookupCache(16);
+    cached.add("OLD");
+    cached.contains("OLD");
+    source.changesSince(0).applyTo(cached);
+    System.out.println("Cached replica after a snapshot: " + cached + ", contains(OLD): " + cached.contains("OLD"));
+    BST skewed = new BST();
+    for (String key : new String[] {"A", "B", "C", "D", "E", "F", "G"}) {
+      skewed.add(key);
+    }
+    System.out.print("Height of A..G added in order: " + skewed.height());
+    skewed.rebalance();
+    System.out.println(", after rebalance: " + skewed.height() + ", ipl " + skewed.ipl());
+    bst1.enableBloomFilter(0.01);
+    System.out.println("With Bloom filter, contains(KK): " + bst1.contains("KK") + ", contains(K): "
+                         + bst1.contains("K") + ", " + bst1.bloomFilter());
+    System.out.println("Union with newBst1: " + bst1.union(newBst1));
+    System.out.println("Intersection with <A B C>: " + bst1.intersection(build(new String[] {"A", "B", "C"}, 3)));
+    System.out.println("Difference with <A B C>: " + bst1.difference(build(new String[] {"A", "B", "C"}, 3)));
+    BST slabbed = bst1.copy();
+    slabbed.useSlab();
+    BST slabCopy = slabbed.copy();
+    slabCopy.add("ZZ");
+    System.out.println("Slab copy plus ZZ: " + slabCopy + ", slab: " + slabCopy.isSlab()
+                         + ", copy equals source: " + slabbed.copy().equals(bst1) + ", " + slabCopy.memoryFootprint());
   }
   
 }
@@ -0,0 +1,338 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded TCP server sharing one set of strings between processes.
+ * <p>
+ * The keys are kept in a <code>ShardedBST</code>, so connections working
+ * in different key ranges do not contend. Every connection is served by
+ * its own thread from a pool.
+ * <p>
+ * The protocol is binary. A request is an operation byte followed by its
+ * arguments. Strings are written as by <code>DataOutputStream.writeUTF</code>
+ * (a 2-byte length and modified UTF-8), so keys are at most 65535 bytes.
+ * <pre>
+ *   ADD      key       -&gt; OK
+ *   CONTAINS key       -&gt; OK, byte 0 or 1
+ *   RANGE    lo, byte 0 or 1, [hi]
+ *                      -&gt; OK, int n, n keys   (hi only after 1; 0 for no upper limit)
+ *   SIZE               -&gt; OK, int size
+ * </pre>
+ * A response starts with the status byte OK, or ERROR followed by a
+ * message, after which the server closes the connection. Responses come
+ * in the order of the requests, so a client may send many requests before
+ * reading the responses (pipelining). The server buffers responses and
+ * writes them when it has no more requests to read, which sends the
+ * responses to a pipelined batch in one packet.
+ */
+public class BSTServer implements AutoCloseable {
+  static final byte ADD = 1;
+  static final byte CONTAINS = 2;
+  static final byte RANGE = 3;
+  static final byte SIZE = 4;
+  static final byte OK = 0;
+  static final byte ERROR = 1;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final ShardedBST tree;
+  private final ServerSocket serverSocket;
+  private final ExecutorService connections;
+  private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Start a server on the loopback interface
+   * @param tree the keys to be served
+   * @param port the port, or 0 for any free port
+   */
+  public BSTServer(ShardedBST tree, int port) throws IOException {
+    this.tree = tree;
+    this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    this.connections = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "BSTServer connection");
+      t.setDaemon(true);
+      return t;
+    });
+    Thread acceptor = new Thread(this::accept, "BSTServer acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * @return the port the server listens on
+   */
+  public int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  private void accept() {
+    long backoff = 0;
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        backoff = 0;
+        socket.setTcpNoDelay(true);
+        open.add(socket);
+        connections.execute(() -> serve(socket));
+      } catch (IOException e) {
+        if (serverSocket.isClosed()) {
+          return;
+        }
+        // e.g. out of file descriptors; wait for connections to close
+        // instead of spinning, at most a second between attempts
+        backoff = Math.min(1000, Math.max(10, 2 * backoff));
+        System.err.println("BSTServer: accept failed, retrying in " + backoff + " ms: " + e);
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (socket;
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+      while (true) {
+        int op = in.read();
+        if (op < 0) {
+          return;
+        }
+        try {
+          handle(op, in, out);
+        } catch (BST.BSTException e) {
+          out.writeByte(ERROR);
+          out.writeUTF(String.valueOf(e.getMessage()));
+          out.flush();
+          return;
+        }
+        if (in.available() == 0) {
+          out.flush();
+        }
+      }
+    } catch (IOException e) {
+      // The client went away
+    } finally {
+      open.remove(socket);
+    }
+  }
+
+  private void handle(int op, DataInputStream in, DataOutputStream out) throws IOException {
+    switch (op) {
+      case ADD:
+        tree.add(in.readUTF());
+        out.writeByte(OK);
+        break;
+      case CONTAINS:
+        boolean found = tree.contains(in.readUTF());
+        out.writeByte(OK);
+        out.writeByte(found ? 1 : 0);
+        break;
+      case RANGE:
+        String lo = in.readUTF();
+        String hi = in.readBoolean() ? in.readUTF() : null;
+        ArrayList<String> keys = tree.range(lo, hi);
+        out.writeByte(OK);
+        out.writeInt(keys.size());
+        for (String key : keys) {
+          out.writeUTF(key);
+        }
+        break;
+      case SIZE:
+        out.writeByte(OK);
+        out.writeInt(tree.size());
+        break;
+      default:
+        throw new BST.BSTException("Unknown operation " + op);
+    }
+  }
+
+  /**
+   * Stop accepting connections and close the open ones
+   */
+  public void close() throws IOException {
+    serverSocket.close();
+    for (Socket socket : open) {
+      socket.close();
+    }
+    connections.shutdown();
+  }
+
+  /**
+   * Connection to a BSTServer. Not thread-safe; use one client per thread.
+   */
+  public static class Client implements AutoCloseable {
+    private static final int WINDOW = 1024;   // requests in flight when pipelining
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public Client(int port) throws IOException {
+      socket = new Socket(InetAddress.getLoopbackAddress(), port);
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+    }
+
+    public void add(String key) {
+      try {
+        out.writeByte(ADD);
+        out.writeUTF(key);
+        out.flush();
+        status();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    public boolean contains(String key) {
+      try {
+        out.writeByte(CONTAINS);
+        out.writeUTF(key);
+        out.flush();
+        status();
+        return in.readByte() != 0;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * @param lo the smallest key of the range
+     * @param hi the key after the range, or null for no upper limit
+     * @return the keys k with lo &lt;= k &lt; hi in ascending order
+     */
+    public ArrayList<String> range(String lo, String hi) {
+      try {
+        out.writeByte(RANGE);
+        out.writeUTF(lo);
+        out.writeBoolean(hi != null);
+        if (hi != null) {
+          out.writeUTF(hi);
+        }
+        out.flush();
+        status();
+        int n = in.readInt();
+        ArrayList<String> result = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++) {
+          result.add(in.readUTF());
+        }
+        return result;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    public int size() {
+      try {
+        out.writeByte(SIZE);
+        out.flush();
+        status();
+        return in.readInt();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Insert many keys, pipelining the requests
+     * @param keys the keys to be inserted
+     */
+    public void addAll(String[] keys) {
+      try {
+        for (int lo = 0; lo < keys.length; lo += WINDOW) {
+          int hi = Math.min(keys.length, lo + WINDOW);
+          for (int i = lo; i < hi; i++) {
+            out.writeByte(ADD);
+            out.writeUTF(keys[i]);
+          }
+          out.flush();
+          for (int i = lo; i < hi; i++) {
+            status();
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * Search many keys, pipelining the requests
+     * @param keys the keys to be searched
+     * @return for every key, true if it is found
+     */
+    public boolean[] containsAll(String[] keys) {
+      boolean[] result = new boolean[keys.length];
+      try {
+        // At most WINDOW requests are sent before their responses are
+        // read, so neither side can block on a full socket buffer
+        for (int lo = 0; lo < keys.length; lo += WINDOW) {
+          int hi = Math.min(keys.length, lo + WINDOW);
+          for (int i = lo; i < hi; i++) {
+            out.writeByte(CONTAINS);
+            out.writeUTF(keys[i]);
+          }
+          out.flush();
+          for (int i = lo; i < hi; i++) {
+            status();
+            result[i] = in.readByte() != 0;
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return result;
+    }
+
+    private void status() throws IOException {
+      byte status = in.readByte();
+      if (status == ERROR) {
+        throw new BST.BSTException(in.readUTF());
+      } else if (status != OK) {
+        throw new IOException("Bad status " + status);
+      }
+    }
+
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  /**
+   * Main-method showing calls to and results from all methods above
+   */
+  public static void main(String[] args) throws IOException {
+    try (BSTServer server = new BSTServer(new ShardedBST("G", "P"), 0);
+         Client client = new Client(server.port())) {
+      System.out.println("Listening on port " + server.port());
+      for (String key : new String[] {"C", "A", "KK", "T", "A", "Z", "H"}) {
+        client.add(key);
+      }
+      System.out.println("size(): " + client.size());
+      System.out.println("contains(KK): " + client.contains("KK") + ", contains(K): " + client.contains("K"));
+      System.out.println("range(B, T): " + client.range("B", "T") + ", range(H, null): " + client.range("H", null)
+                           + ", range(B, \"\"): " + client.range("B", ""));
+      client.addAll(new String[] {"B", "D", "E"});
+      System.out.println("containsAll(B, X, E): "
+                           + Arrays.toString(client.containsAll(new String[] {"B", "X", "E"})));
+      System.out.println("size(): " + client.size());
+    }
+  }
+}
@@ -0,0 +1,999 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Simple timing benchmarks for the data structures.
+ * Run with the names of the benchmarks as arguments, or without arguments
+ * to run all of them.
+ */
+public class Benchmark {
+
+  private static final Map<String, Runnable> BENCHMARKS = new LinkedHashMap<String, Runnable>();
+
+  static {
+    BENCHMARKS.put("compressed", Benchmark::compressed);
+    BENCHMARKS.put("bulkload", Benchmark::bulkload);
+    BENCHMARKS.put("parallelbst", Benchmark::parallelBst);
+    BENCHMARKS.put("offheap", Benchmark::offHeap);
+    BENCHMARKS.put("copies", Benchmark::copies);
+    BENCHMARKS.put("cache", Benchmark::cache);
+    BENCHMARKS.put("adaptive", Benchmark::adaptive);
+    BENCHMARKS.put("batch", Benchmark::batch);
+    BENCHMARKS.put("cursor", Benchmark::cursor);
+    BENCHMARKS.put("feed", Benchmark::feed);
+    BENCHMARKS.put("rebalance", Benchmark::rebalance);
+    BENCHMARKS.put("bloom", Benchmark::bloom);
+    BENCHMARKS.put("sharded", Benchmark::sharded);
+    BENCHMARKS.put("lsm", Benchmark::lsm);
+    BENCHMARKS.put("external", Benchmark::external);
+    BENCHMARKS.put("server", Benchmark::server);
+    BENCHMARKS.put("footprint", Benchmark::footprint);
+    BENCHMARKS.put("trace", Benchmark::trace);
+  }
+
+  /**
+   * Compressed size and scan throughput of CompressedSortedList on a
+   * dense posting list
+   */
+  static void compressed() {
+    int n = 10_000_000;
+    Random rnd = new Random(42);
+    int[] values = new int[n];
+    int v = 0;
+    for (int i = 0; i < n; i++) {
+      v += 1 + (rnd.nextInt(8) == 0 ? rnd.nextInt(16) : 0);
+      values[i] = v;
+    }
+    CompressedSortedList c = CompressedSortedList.of(values);
+    System.out.printf("compressed: %d values, %.3f bytes/value%n",
+                      n, (double) c.bytesUsed() / n);
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      int[] decoded = c.toArray();
+      long time = System.nanoTime() - start;
+      System.out.printf("compressed: scan %.0f M values/s (last %d)%n",
+                        n * 1e3 / time, decoded[n - 1]);
+    }
+    int hits = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < 1_000_000; i++) {
+      if (c.contains(rnd.nextInt(v))) {
+        hits++;
+      }
+    }
+    System.out.printf("compressed: contains %.0f ns/op (%d hits)%n",
+                      (System.nanoTime() - start) / 1e6, hits);
+  }
+
+  /**
+   * Bulk loading of SortedList with addAll and of compared to repeated add
+   */
+  static void bulkload() {
+    Random rnd = new Random(42);
+    int[] values = rnd.ints(5_000_000).toArray();
+    for (int round = 0; round < 3; round++) {
+      long start = System.nanoTime();
+      SortedList l = SortedList.of(values);
+      System.out.printf("bulkload: of() %d values in %.0f ms%n",
+                        values.length, (System.nanoTime() - start) / 1e6);
+      start = System.nanoTime();
+      l.addAll(rnd.ints(1_000_000).toArray());
+      System.out.printf("bulkload: addAll() 1000000 more in %.0f ms%n",
+                        (System.nanoTime() - start) / 1e6);
+    }
+    int n = 20_000;
+    long start = System.nanoTime();
+    SortedList l = new SortedList();
+    for (int i = 0; i < n; i++) {
+      l.add(values[i]);
+    }
+    System.out.printf("bulkload: add() %d values one by one in %.0f ms%n",
+                      n, (System.nanoTime() - start) / 1e6);
+  }
+
+  /**
+   * Random string keys, distinct with high probability
+   */
+  static String[] randomKeys(int n, Random rnd) {
+    String[] keys = new String[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = Long.toString(rnd.nextLong() & Long.MAX_VALUE, 36);
+    }
+    return keys;
+  }
+  
+  static BST randomTree(int n, Random rnd) {
+    BST t = new BST();
+    for (String key : randomKeys(n, rnd)) {
+      t.add(key);
+    }
+    return t;
+  }
+
+  /**
+   * Scalability of the parallel BST traversals over 1..N worker threads
+   */
+  static void parallelBst() {
+    BST t = randomTree(1_000_000, new Random(42));
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int p = 1; p <= cores; p = p < cores && 2 * p > cores ? cores : 2 * p) {
+      ForkJoinPool pool = new ForkJoinPool(p);
+      BST.Parallel par = t.parallel(pool);
+      for (int round = 0; round < 3; round++) {
+        long start = System.nanoTime();
+        int size = par.size();
+        long sizeTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        int height = par.height();
+        long heightTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        int ipl = par.ipl();
+        long iplTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        BST copy = par.copy();
+        long copyTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        boolean equal = par.equals(copy);
+        long equalsTime = System.nanoTime() - start;
+        System.out.printf("parallelbst: %2d threads size %d ms, height %d ms, ipl %d ms, "
+                            + "copy %d ms, equals %d ms (%d, %d, %d, %b)%n",
+                          p, sizeTime / 1_000_000, heightTime / 1_000_000,
+                          iplTime / 1_000_000, copyTime / 1_000_000,
+                          equalsTime / 1_000_000, size, height, ipl, equal);
+      }
+      pool.shutdown();
+    }
+  }
+
+  static long usedHeap() {
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  static long gcMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, gc.getCollectionTime());
+    }
+    return total;
+  }
+
+  /**
+   * Heap usage and garbage collection time of BST compared to OffHeapBST
+   */
+  static void offHeap() {
+    int n = 2_000_000;
+    for (int mode = 0; mode < 2; mode++) {
+      long heapBefore = usedHeap();
+      long gcBefore = gcMillis();
+      String[] keys = randomKeys(n, new Random(42));
+      long start = System.nanoTime();
+      BST heapTree = null;
+      OffHeapBST offHeapTree = null;
+      if (mode == 0) {
+        heapTree = new BST();
+        for (String key : keys) {
+          heapTree.add(key);
+        }
+      } else {
+        offHeapTree = new OffHeapBST(n);
+        for (String key : keys) {
+          offHeapTree.add(key);
+        }
+      }
+      long buildTime = System.nanoTime() - start;
+      long gcBuild = gcMillis() - gcBefore;
+      keys = null;
+      long gcStart = System.nanoTime();
+      long heap = usedHeap() - heapBefore;
+      long fullGc = System.nanoTime() - gcStart;
+      System.out.printf("offheap: %-10s %d keys, build %d ms, gc during build %d ms, "
+                          + "retained heap %.1f MB, full gc %d ms%n",
+                        mode == 0 ? "BST" : "OffHeapBST",
+                        mode == 0 ? heapTree.size() : offHeapTree.size(),
+                        buildTime / 1_000_000, gcBuild, heap / 1e6, fullGc / 1_000_000);
+    }
+  }
+
+  /**
+   * Bytes allocated by the current thread so far
+   */
+  static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+      .getCurrentThreadAllocatedBytes();
+  }
+
+  static void reportAllocation(String name, Runnable action) {
+    for (int round = 0; round < 3; round++) {
+      long bytes = allocatedBytes();
+      long start = System.nanoTime();
+      action.run();
+      long time = System.nanoTime() - start;
+      bytes = allocatedBytes() - bytes;
+      System.out.printf("copies: %-32s %6d ms, %8.1f MB allocated on heap%n",
+                        name, time / 1_000_000, bytes / 1e6);
+    }
+  }
+
+  /**
+   * Time and heap allocation of node-by-node copies compared to the array
+   * clones of slab mode, bulk copies of the off-heap and compressed forms,
+   * and the conversions between them
+   */
+  static void copies() {
+    BST tree = randomTree(1_000_000, new Random(42));
+    BST slabTree = tree.copy();
+    slabTree.useSlab();
+    OffHeapBST offHeapTree = tree.toOffHeap();
+    reportAllocation("BST.copy()", () -> tree.copy());
+    reportAllocation("BST.copy() in slab mode", () -> slabTree.copy());
+    reportAllocation("BST.toOffHeap()", () -> tree.toOffHeap());
+    reportAllocation("OffHeapBST.copy()", () -> offHeapTree.copy());
+
+    Random rnd = new Random(42);
+    SortedList p = SortedList.of(rnd.ints(2_000_000).toArray());
+    SortedList q = SortedList.of(rnd.ints(2_000_000).toArray());
+    reportAllocation("SortedList.copy()", () -> p.copy());
+    reportAllocation("SortedList.compress()", () -> p.compress());
+    reportAllocation("SortedList.merge()", () -> p.merge(q));
+    reportAllocation("SortedList.mergeCompressed()", () -> p.mergeCompressed(q));
+    SortedList slabP = p.copy();
+    SortedList slabQ = q.copy();
+    slabP.useSlab();
+    slabQ.useSlab();
+    reportAllocation("SortedList.copy() in slab mode", () -> slabP.copy());
+    reportAllocation("SortedList.merge() in slab mode", () -> slabP.merge(slabQ));
+  }
+
+  /**
+   * Ranks 0..n-1 drawn from a zipfian distribution with exponent s
+   */
+  static int[] zipf(int n, double s, int samples, Random rnd) {
+    double[] cdf = new double[n];
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += 1 / Math.pow(i + 1, s);
+      cdf[i] = sum;
+    }
+    int[] result = new int[samples];
+    for (int i = 0; i < samples; i++) {
+      int r = Arrays.binarySearch(cdf, rnd.nextDouble() * sum);
+      result[i] = Math.min(n - 1, r < 0 ? -r - 1 : r);
+    }
+    return result;
+  }
+
+  /**
+   * BST.contains with and without the lookup cache on a zipfian workload
+   */
+  static void cache() {
+    Random rnd = new Random(42);
+    String[] keys = randomKeys(1_000_000, rnd);
+    BST tree = new BST();
+    for (String key : keys) {
+      tree.add(key);
+    }
+    // Copies of the keys, so hits are not found by reference equality alone
+    String[] copies = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      copies[i] = new String(keys[i]);
+    }
+    String[] lookups = new String[5_000_000];
+    int[] ranks = zipf(keys.length, 1.1, lookups.length, rnd);
+    for (int i = 0; i < lookups.length; i++) {
+      lookups[i] = copies[ranks[i]];
+    }
+    int[] capacities = {0, 16_384, 131_072};
+    for (int mode = 0; mode < capacities.length; mode++) {
+      if (capacities[mode] > 0) {
+        tree.enableLookupCache(capacities[mode]);
+      }
+      for (int round = 0; round < 3; round++) {
+        long start = System.nanoTime();
+        int found = 0;
+        for (String key : lookups) {
+          if (tree.contains(key)) {
+            found++;
+          }
+        }
+        long time = System.nanoTime() - start;
+        System.out.printf("cache: capacity %6d %.0f ns/lookup (%d found)%s%n",
+                          capacities[mode], (double) time / lookups.length, found,
+                          mode == 0 ? "" : String.format(", hit ratio %.3f", tree.lookupCache().hitRatio()));
+      }
+    }
+  }
+
+  /**
+   * Average nodes visited per lookup for the restructuring policies on a
+   * zipfian workload whose hot set shifts halfway through
+   */
+  static void adaptive() {
+    Random rnd = new Random(42);
+    String[] keys = randomKeys(200_000, rnd);
+    int[] ranks = zipf(keys.length, 1.1, 2_000_000, rnd);
+    for (BST.Policy policy : BST.Policy.values()) {
+      BST tree = new BST(policy);
+      for (String key : keys) {
+        tree.add(key);
+      }
+      long visited = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < ranks.length; i++) {
+        // The hot set moves to other keys in the second half
+        int k = i < ranks.length / 2 ? ranks[i] : keys.length - 1 - ranks[i];
+        visited += tree.depth(keys[k]);
+        tree.contains(keys[k]);
+      }
+      long time = System.nanoTime() - start;
+      System.out.printf("adaptive: %-5s %.2f nodes visited per lookup, %.0f ns per depth+lookup, height %d%n",
+                        policy, (double) visited / ranks.length, (double) time / ranks.length,
+                        tree.height());
+    }
+  }
+
+  /**
+   * Batched lookups and inserts compared to one call per key
+   */
+  static void batch() {
+    Random rnd = new Random(42);
+    String[] keys = randomKeys(1_000_000, rnd);
+    BST tree = new BST();
+    for (String key : keys) {
+      tree.add(key);
+    }
+    String[] batch = new String[200_000];
+    for (int i = 0; i < batch.length; i++) {
+      batch[i] = rnd.nextBoolean() ? keys[rnd.nextInt(keys.length)] : Long.toString(rnd.nextLong(), 36);
+    }
+    String[] presorted = batch.clone();
+    Arrays.sort(presorted);
+    for (int round = 0; round < 5; round++) {
+      for (String[] b : new String[][] {batch, presorted}) {
+        long start = System.nanoTime();
+        int found = 0;
+        for (String key : b) {
+          if (tree.contains(key)) {
+            found++;
+          }
+        }
+        long single = System.nanoTime() - start;
+        start = System.nanoTime();
+        boolean[] all = tree.containsAll(b);
+        long shared = System.nanoTime() - start;
+        start = System.nanoTime();
+        boolean[] par = tree.containsAllParallel(b);
+        long parallel = System.nanoTime() - start;
+        System.out.printf("batch: %d %s lookups: contains %d ms, containsAll %d ms, "
+                            + "containsAllParallel %d ms (%d found, same result %b)%n",
+                          b.length, b == batch ? "random" : "sorted", single / 1_000_000,
+                          shared / 1_000_000, parallel / 1_000_000, found, Arrays.equals(all, par));
+      }
+    }
+    String[] sortedBatch = randomKeys(200_000, rnd);
+    Arrays.sort(sortedBatch);
+    BST single = tree.copy();
+    long start = System.nanoTime();
+    for (String key : sortedBatch) {
+      single.add(key);
+    }
+    long oneByOne = System.nanoTime() - start;
+    start = System.nanoTime();
+    tree.addAll(sortedBatch);
+    long shared = System.nanoTime() - start;
+    System.out.printf("batch: %d sorted inserts: add %d ms, addAll %d ms%n",
+                      sortedBatch.length, oneByOne / 1_000_000, shared / 1_000_000);
+  }
+
+  /**
+   * Nearly sorted lookups through a cursor compared to contains from the root
+   */
+  static void cursor() {
+    Random rnd = new Random(42);
+    String[] keys = randomKeys(1_000_000, rnd);
+    BST tree = new BST();
+    for (String key : keys) {
+      tree.add(key);
+    }
+    String[] queries = new String[500_000];
+    for (int i = 0; i < queries.length; i++) {
+      queries[i] = rnd.nextBoolean() ? keys[rnd.nextInt(keys.length)] : Long.toString(rnd.nextLong(), 36);
+    }
+    Arrays.sort(queries);
+    for (int i = 0; i + 1 < queries.length; i += 2) {  // nearly sorted: swap some neighbours
+      if (rnd.nextInt(4) == 0) {
+        String t = queries[i];
+        queries[i] = queries[i + 1];
+        queries[i + 1] = t;
+      }
+    }
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      int found = 0;
+      for (String key : queries) {
+        if (tree.contains(key)) {
+          found++;
+        }
+      }
+      long root = System.nanoTime() - start;
+      start = System.nanoTime();
+      int seeks = 0;
+      BST.Cursor cursor = tree.cursor();
+      for (String key : queries) {
+        if (cursor.seek(key)) {
+          seeks++;
+        }
+      }
+      long finger = System.nanoTime() - start;
+      start = System.nanoTime();
+      int n = 0;
+      for (boolean more = cursor.first(); more; more = cursor.next()) {
+        n++;
+      }
+      long scan = System.nanoTime() - start;
+      System.out.printf("cursor: %d nearly sorted lookups: contains %d ms, seek %d ms (%d/%d found), "
+                          + "scan of %d keys with next %d ms%n",
+                        queries.length, root / 1_000_000, finger / 1_000_000, found, seeks,
+                        n, scan / 1_000_000);
+    }
+  }
+
+  /**
+   * A replica following a tree through the change feed compared to
+   * diffing full dumps of the keys
+   */
+  static void feed() {
+    Random rnd = new Random(42);
+    BST source = new BST();
+    for (String key : randomKeys(1_000_000, rnd)) {
+      source.add(key);
+    }
+    source.enableChangeFeed(100_000);
+    BST replica = new BST();
+    long seen = source.changesSince(0).applyTo(replica);
+    ArrayList<String> dump = source.toArrayList();
+    for (int round = 0; round < 5; round++) {
+      for (String key : randomKeys(10_000, rnd)) {
+        source.add(key);
+      }
+      long start = System.nanoTime();
+      ArrayList<String> next = source.toArrayList();
+      int changed = 0;
+      for (int i = 0, j = 0; j < next.size(); j++) {
+        if (i < dump.size() && dump.get(i).equals(next.get(j))) {
+          i++;
+        } else {
+          changed++;
+        }
+      }
+      dump = next;
+      long diff = System.nanoTime() - start;
+      start = System.nanoTime();
+      BST.Changes changes = source.changesSince(seen);
+      long delta = System.nanoTime() - start;
+      start = System.nanoTime();
+      seen = changes.applyTo(replica);
+      long apply = System.nanoTime() - start;
+      System.out.printf("feed: version %d, dump and diff %d ms (%d new keys), "
+                          + "changesSince %.2f ms (%d keys), apply %d ms, replica in sync %b%n",
+                        seen, diff / 1_000_000, changed, delta / 1e6, changes.keys().length,
+                        apply / 1_000_000, replica.size() == source.size());
+    }
+  }
+
+  /**
+   * Ingest of keys arriving in sorted runs, which skews a plain tree,
+   * followed by random lookups
+   */
+  static void rebalance() {
+    Random rnd = new Random(42);
+    String[] keys = randomKeys(1_000_000, rnd);
+    int run = 1000;
+    for (int i = 0; i < keys.length; i += run) {
+      Arrays.sort(keys, i, Math.min(keys.length, i + run));
+    }
+    String[] queries = new String[1_000_000];
+    for (int i = 0; i < queries.length; i++) {
+      queries[i] = keys[rnd.nextInt(keys.length)];
+    }
+    String[] modes = {"plain", "plain+rebalance", "auto(2)", "auto(1.5)", "treap"};
+    for (int round = 0; round < 2; round++) {
+      for (String mode : modes) {
+        BST tree = new BST(mode.equals("treap") ? BST.Policy.TREAP : BST.Policy.PLAIN);
+        if (mode.startsWith("auto")) {
+          tree.autoRebalance(Double.parseDouble(mode.substring(5, mode.length() - 1)));
+        }
+        long start = System.nanoTime();
+        for (String key : keys) {
+          tree.add(key);
+        }
+        long ingest = System.nanoTime() - start;
+        start = System.nanoTime();
+        if (mode.equals("plain+rebalance")) {
+          tree.rebalance();
+        }
+        long rebalance = System.nanoTime() - start;
+        start = System.nanoTime();
+        int found = 0;
+        for (String key : queries) {
+          if (tree.contains(key)) {
+            found++;
+          }
+        }
+        long lookup = System.nanoTime() - start;
+        System.out.printf("rebalance: %-16s ingest %4d ms, rebalance %3d ms, height %4d, ipl/n %5.1f, "
+                            + "1M lookups %4d ms (%d found)%n",
+                          mode, ingest / 1_000_000, rebalance / 1_000_000, tree.height(),
+                          (double) tree.ipl() / tree.size(), lookup / 1_000_000, found);
+      }
+    }
+  }
+
+  /**
+   * Lookups where most keys are missing, with and without a Bloom filter
+   */
+  static void bloom() {
+    Random rnd = new Random(42);
+    String[] keys = randomKeys(1_000_000, rnd);
+    BST tree = new BST();
+    for (String key : keys) {
+      tree.add(key);
+    }
+    String[] queries = new String[1_000_000];
+    for (int i = 0; i < queries.length; i++) {
+      queries[i] = rnd.nextInt(10) == 0 ? keys[rnd.nextInt(keys.length)] : Long.toString(rnd.nextLong(), 36);
+    }
+    int[] values = new int[5_000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = rnd.nextInt(1_000_000);
+    }
+    int[] probes = new int[20_000];
+    for (int i = 0; i < probes.length; i++) {
+      probes[i] = rnd.nextInt(10) == 0 ? values[rnd.nextInt(values.length)] : rnd.nextInt(1_000_000);
+    }
+    for (int round = 0; round < 3; round++) {
+      for (double fpp : new double[] {0, 0.01, 0.001}) {
+        if (fpp == 0) {
+          tree.disableBloomFilter();
+        } else {
+          tree.enableBloomFilter(fpp);
+        }
+        long start = System.nanoTime();
+        int found = 0;
+        for (String key : queries) {
+          if (tree.contains(key)) {
+            found++;
+          }
+        }
+        long time = System.nanoTime() - start;
+        System.out.printf("bloom: BST 1M keys, 1M lookups (90%% misses), %s: %d ms, %d found%s%n",
+                          fpp == 0 ? "no filter" : "fpp " + fpp, time / 1_000_000, found,
+                          fpp == 0 ? "" : ", " + tree.bloomFilter());
+      }
+      for (double fpp : new double[] {0, 0.01}) {
+        SortedList list = SortedList.of(values);
+        if (fpp > 0) {
+          list.enableBloomFilter(fpp);
+        }
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < probes.length; i++) {
+          if (list.containsIter(probes[i])) {
+            found++;
+          }
+          if (i % 4 == 0) {  // churn: the removed values stay in the filter until it is rebuilt
+            list.removeFirst();
+            list.add(rnd.nextInt(1_000_000));
+          }
+        }
+        long time = System.nanoTime() - start;
+        System.out.printf("bloom: SortedList 5k values, 20k lookups (90%% misses) and 5k removals, %s: "
+                            + "%d ms, %d found%s%n",
+                          fpp == 0 ? "no filter" : "fpp " + fpp, time / 1_000_000, found,
+                          fpp == 0 ? "" : ", " + list.bloomFilter());
+      }
+    }
+  }
+
+  /**
+   * Mixed lookups and inserts from several threads on one locked tree and
+   * on a sharded tree
+   */
+  static void sharded() {
+    Random rnd = new Random(42);
+    String[] keys = randomKeys(500_000, rnd);
+    int cores = Runtime.getRuntime().availableProcessors();
+    System.out.println("sharded: " + cores + " available processors");
+    for (int threads = 1; threads <= Math.max(8, 2 * cores); threads *= 2) {
+      BST single = new BST();
+      ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+      ShardedBST sharded = ShardedBST.fromSample(Arrays.copyOf(keys, 10_000), 64);
+      for (String key : keys) {
+        single.add(key);
+        sharded.add(key);
+      }
+      double locked = opsPerSecond(threads, key -> {
+        lock.readLock().lock();
+        try {
+          return single.contains(key);
+        } finally {
+          lock.readLock().unlock();
+        }
+      }, key -> {
+        lock.writeLock().lock();
+        try {
+          single.add(key);
+        } finally {
+          lock.writeLock().unlock();
+        }
+      });
+      double shards = opsPerSecond(threads, sharded::contains, sharded::add);
+      System.out.printf("sharded: %2d threads, 90%% contains / 10%% add: one locked BST %.2f M ops/s, "
+                          + "ShardedBST (%d shards) %.2f M ops/s%n",
+                        threads, locked / 1e6, sharded.shardCount(), shards / 1e6);
+    }
+  }
+
+  private static double opsPerSecond(int threads, Predicate<String> contains, Consumer<String> add) {
+    int perThread = 400_000;
+    Thread[] workers = new Thread[threads];
+    CountDownLatch start = new CountDownLatch(1);
+    for (int t = 0; t < threads; t++) {
+      Random rnd = new Random(t);
+      workers[t] = new Thread(() -> {
+        String[] ops = randomKeys(perThread, rnd);
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (int i = 0; i < ops.length; i++) {
+          if (i % 10 == 0) {
+            add.accept(ops[i]);
+          } else {
+            contains.test(ops[i]);
+          }
+        }
+      });
+      workers[t].start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread w : workers) {
+      try {
+        w.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return (double) threads * perThread / ((System.nanoTime() - begin) / 1e9);
+  }
+
+  /**
+   * Sustained ingest into a large tree with a concurrent reader, direct
+   * insertion under a lock compared to the write-buffered tree
+   */
+  static void lsm() {
+    Random rnd = new Random(42);
+    String[] preload = randomKeys(1_000_000, rnd);
+    String[] ingest = randomKeys(1_000_000, rnd);
+    for (int round = 0; round < 2; round++) {
+      BST direct = new BST();
+      ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+      for (String key : preload) {
+        direct.add(key);
+      }
+      ingestWithReader("direct", preload, ingest, key -> {
+        lock.writeLock().lock();
+        try {
+          direct.add(key);
+        } finally {
+          lock.writeLock().unlock();
+        }
+      }, key -> {
+        lock.readLock().lock();
+        try {
+          return direct.contains(key);
+        } finally {
+          lock.readLock().unlock();
+        }
+      }, () -> { });
+      for (int capacity : new int[] {8_192, 65_536}) {
+        BufferedBST buffered = new BufferedBST(capacity);
+        for (String key : preload) {
+          buffered.add(key);
+        }
+        buffered.flush();
+        ingestWithReader("buffered(" + capacity + ")", preload, ingest,
+                         buffered::add, buffered::contains, buffered::flush);
+        buffered.close();
+      }
+    }
+  }
+
+  private static void ingestWithReader(String name, String[] present, String[] ingest,
+                                       Consumer<String> add, Predicate<String> contains, Runnable flush) {
+    AtomicBoolean done = new AtomicBoolean(false);
+    long[] latencies = new long[2_000_000];
+    int[] reads = {0};
+    Thread reader = new Thread(() -> {
+      Random rnd = new Random(1);
+      while (!done.get() && reads[0] < latencies.length) {
+        String key = present[rnd.nextInt(present.length)];
+        long start = System.nanoTime();
+        contains.test(key);
+        latencies[reads[0]++] = System.nanoTime() - start;
+      }
+    });
+    reader.start();
+    long start = System.nanoTime();
+    for (String key : ingest) {
+      add.accept(key);
+    }
+    flush.run();
+    long time = System.nanoTime() - start;
+    done.set(true);
+    try {
+      reader.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    long[] sorted = Arrays.copyOf(latencies, reads[0]);
+    Arrays.sort(sorted);
+    System.out.printf("lsm: %-16s ingest %.2f M keys/s, %d concurrent reads, "
+                        + "latency p50 %.1f us, p99 %.1f us, p99.9 %.1f us%n",
+                      name, ingest.length / (time / 1e9) / 1e6, sorted.length,
+                      percentile(sorted, 0.5) / 1e3, percentile(sorted, 0.99) / 1e3,
+                      percentile(sorted, 0.999) / 1e3);
+  }
+
+  /**
+   * Loopback load test of BSTServer: latency of single requests and
+   * throughput of single and pipelined requests from 1..N clients
+   */
+  static void server() {
+    Random rnd = new Random(42);
+    String[] keys = randomKeys(1_000_000, rnd);
+    ShardedBST tree = ShardedBST.fromSample(Arrays.copyOf(keys, 10_000), 16);
+    tree.addAll(keys);
+    int single = 20_000;
+    int pipelined = 200_000;
+    try (BSTServer server = new BSTServer(tree, 0)) {
+      for (int clients = 1; clients <= 4; clients *= 2) {
+        long[][] latencies = new long[clients][single];
+        // The clients and this thread meet before and after each phase
+        CyclicBarrier phase = new CyclicBarrier(clients + 1);
+        for (int c = 0; c < clients; c++) {
+          int id = c;
+          Thread t = new Thread(() -> {
+            Random r = new Random(id);
+            String[] batch = new String[pipelined];
+            for (int i = 0; i < pipelined; i++) {
+              batch[i] = r.nextBoolean() ? keys[r.nextInt(keys.length)] : Long.toString(r.nextLong(), 36);
+            }
+            try (BSTServer.Client client = new BSTServer.Client(server.port())) {
+              phase.await();
+              for (int i = 0; i < single; i++) {
+                long start = System.nanoTime();
+                client.contains(batch[i]);
+                latencies[id][i] = System.nanoTime() - start;
+              }
+              phase.await();
+              phase.await();
+              client.containsAll(batch);
+              phase.await();
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          });
+          t.setDaemon(true);
+          t.start();
+        }
+        long singleTime;
+        long pipelinedTime;
+        try {
+          phase.await();
+          long start = System.nanoTime();
+          phase.await();
+          singleTime = System.nanoTime() - start;
+          phase.await();
+          start = System.nanoTime();
+          phase.await();
+          pipelinedTime = System.nanoTime() - start;
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+        long[] all = new long[clients * single];
+        for (int c = 0; c < clients; c++) {
+          System.arraycopy(latencies[c], 0, all, c * single, single);
+        }
+        Arrays.sort(all);
+        System.out.printf("server: %d clients, single %.0f k req/s (p50 %.1f us, p99 %.1f us), "
+                            + "pipelined %.0f k req/s%n",
+                          clients, clients * single / (singleTime / 1e9) / 1e3,
+                          percentile(all, 0.5) / 1e3, percentile(all, 0.99) / 1e3,
+                          clients * pipelined / (pipelinedTime / 1e9) / 1e3);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Estimated memory footprints compared to the measured heap growth
+   */
+  static void footprint() {
+    int n = 1_000_000;
+    Random rnd = new Random(42);
+    int[] values = rnd.ints(n).toArray();
+    long before = usedHeap();
+    BST t = randomTree(n, rnd);
+    long measured = usedHeap() - before;
+    reportFootprint(t.memoryFootprint(), measured);
+    before = usedHeap();
+    SortedList l = SortedList.of(values);
+    measured = usedHeap() - before;
+    reportFootprint(l.memoryFootprint(), measured);
+    Arrays.sort(values);
+    before = usedHeap();
+    CompressedSortedList c = CompressedSortedList.of(values);
+    measured = usedHeap() - before;
+    reportFootprint(c.memoryFootprint(), measured);
+    System.out.println("footprint: (kept alive: " + (t.size() + l.size() + c.size()) + ")");
+  }
+
+  private static void reportFootprint(MemoryFootprint f, long measured) {
+    System.out.printf("footprint: %-20s estimated %.1f MB (%.1f bytes/element), measured %.1f MB, "
+                        + "projected at 100M %.0f MB%n",
+                      f.structure(), f.totalBytes() / 1e6, f.bytesPerElement(), measured / 1e6,
+                      f.project(100_000_000).totalBytes() / 1e6);
+  }
+
+  /**
+   * Overhead of recording a workload, and the recorded workload replayed
+   * against several tree variants
+   */
+  static void trace() {
+    Random rnd = new Random(42);
+    String[] keys = randomKeys(200_000, rnd);
+    // 20 % adds, 80 % lookups skewed towards a hot set of keys
+    String[] ops = new String[2_000_000];
+    boolean[] adds = new boolean[ops.length];
+    for (int i = 0; i < ops.length; i++) {
+      adds[i] = rnd.nextInt(5) == 0;
+      ops[i] = keys[rnd.nextInt(10) < 8 ? rnd.nextInt(keys.length / 100) : rnd.nextInt(keys.length)];
+    }
+    try {
+      Path file = Files.createTempFile("workload", ".trace");
+      try {
+        for (int round = 0; round < 3; round++) {
+          BST plain = new BST();
+          long start = System.nanoTime();
+          runOps(plain, ops, adds);
+          long plainTime = System.nanoTime() - start;
+          BST recorded = new BST();
+          long recordTime;
+          try (WorkloadTrace.Recorder recorder = new WorkloadTrace.Recorder(file)) {
+            recorded.setRecorder(recorder);
+            start = System.nanoTime();
+            runOps(recorded, ops, adds);
+            recordTime = System.nanoTime() - start;
+          }
+          System.out.printf("trace: %d ops in %d ms, recorded in %d ms (%+.1f %%), %.1f bytes/op%n",
+                            ops.length, plainTime / 1_000_000, recordTime / 1_000_000,
+                            100.0 * (recordTime - plainTime) / plainTime, (double) Files.size(file) / ops.length);
+        }
+        WorkloadTrace trace = WorkloadTrace.load(file);
+        Map<String, BST> variants = new LinkedHashMap<String, BST>();
+        variants.put("PLAIN", new BST());
+        variants.put("SPLAY", new BST(BST.Policy.SPLAY));
+        variants.put("TREAP", new BST(BST.Policy.TREAP));
+        BST cached = new BST();
+        cached.enableLookupCache(4096);
+        variants.put("PLAIN+cache", cached);
+        for (Map.Entry<String, BST> variant : variants.entrySet()) {
+          WorkloadTrace.Result result = trace.replay(WorkloadTrace.of(variant.getValue()));
+          WorkloadTrace.Histogram lookups = result.histogram("contains");
+          System.out.printf("trace: replay on %-12s %.2f M ops/s, contains p50 %d ns, p99 %d ns%n",
+                            variant.getKey(), result.throughput() / 1e6,
+                            lookups.percentile(0.5), lookups.percentile(0.99));
+        }
+      } finally {
+        Files.delete(file);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void runOps(BST t, String[] ops, boolean[] adds) {
+    for (int i = 0; i < ops.length; i++) {
+      if (adds[i]) {
+        t.add(ops[i]);
+      } else {
+        t.contains(ops[i]);
+      }
+    }
+  }
+
+  private static long percentile(long[] sorted, double p) {
+    return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, p * sorted.length)];
+  }
+
+  /**
+   * Ingest, lookup, sorted iteration and merge of ExternalSortedList with
+   * a 4 MB in-memory run
+   */
+  static void external() {
+    int n = 50_000_000;
+    int runCapacity = 1 << 20;
+    Random rnd = new Random(42);
+    try (ExternalSortedList a = new ExternalSortedList(runCapacity);
+         ExternalSortedList b = new ExternalSortedList(runCapacity)) {
+      long start = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+        (i % 2 == 0 ? a : b).add(rnd.nextInt());
+      }
+      a.compact();
+      b.compact();
+      long time = System.nanoTime() - start;
+      System.out.printf("external: add %.1f M values/s, %d values on disk, heap in use %d MB%n",
+                        n / (time / 1e9) / 1e6, n, usedHeap() >> 20);
+      int hits = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < 1_000_000; i++) {
+        if (a.contains(rnd.nextInt())) {
+          hits++;
+        }
+      }
+      System.out.printf("external: contains %.0f ns/op (%d hits)%n",
+                        (System.nanoTime() - start) / 1e6, hits);
+      for (int round = 0; round < 3; round++) {
+        start = System.nanoTime();
+        long sum = 0;
+        for (PrimitiveIterator.OfInt it = a.iterator(); it.hasNext();) {
+          sum += it.nextInt();
+        }
+        time = System.nanoTime() - start;
+        System.out.printf("external: iterate %.0f M values/s (sum %d)%n", a.size() / (time / 1e9) / 1e6, sum);
+      }
+      start = System.nanoTime();
+      try (ExternalSortedList merged = a.merge(b)) {
+        time = System.nanoTime() - start;
+        System.out.printf("external: merge %.0f M values/s, %d values%n",
+                          merged.size() / (time / 1e9) / 1e6, merged.size());
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      args = BENCHMARKS.keySet().toArray(new String[0]);
+    }
+    for (String name : args) {
+      Runnable benchmark = BENCHMARKS.get(name);
+      if (benchmark == null) {
+        System.out.println("Unknown benchmark: " + name + ", available: " + BENCHMARKS.keySet());
+      } else {
+        benchmark.run();
+      }
+    }
+  }
+}
@@ -0,0 +1,260 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Thread-safe binary search tree with strings as keys, optimized for
+ * heavy insertion in the style of a log-structured merge tree.
+ * <p>
+ * New keys go to a small hash set. When it is full it is frozen, and a
+ * background thread sorts it and merges it into the tree with
+ * <code>BST.addAll</code>, in chunks so that readers are never locked out
+ * for long. Meanwhile a new buffer takes the adds. If the buffer fills up
+ * again before the merge is done, adds wait for the merge (back-pressure).
+ * <code>contains</code> checks the buffer, the frozen set and the tree,
+ * in that order, which is also the order in which keys move.
+ * <p>
+ * If a merge fails, the keys of the failed merge may be only partly in
+ * the tree. Every later add, flush, size, toArrayList and close throws an
+ * IllegalStateException caused by the failure.
+ */
+public class BufferedBST implements AutoCloseable {
+  private static final int MERGE_CHUNK = 4096;
+
+  private final BST tree = new BST();
+  private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+  private final int capacity;
+  private final ExecutorService merger;
+  private HashSet<String> buffer = new HashSet<String>();   // guarded by this
+  private HashSet<String> frozen;                           // guarded by this, null when no merge is running
+  private long merges;
+  private Throwable failure;                                // guarded by this, the first failed merge
+  private boolean closed;                                   // guarded by this
+
+  /**
+   * @param capacity the number of keys buffered before a merge starts
+   */
+  public BufferedBST(int capacity) {
+    if (capacity < 1) {
+      throw new BST.BSTException("The buffer capacity must be positive");
+    }
+    this.capacity = capacity;
+    this.merger = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "BufferedBST merger");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Insert a key. Returns after the key is buffered, unless the buffer is
+   * full while the previous merge is still running.
+   * @param key the key to be inserted
+   * @throws BST.BSTException if the key is null
+   * @throws IllegalStateException if the tree is closed or a merge has failed
+   */
+  public void add(String key) {
+    if (key == null) {
+      throw new BST.BSTException("Null keys can not be added");
+    }
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("The tree is closed");
+      }
+      checkFailure();
+      buffer.add(key);
+      while (buffer.size() >= capacity) {
+        if (frozen == null) {
+          startMerge();
+        } else {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+          checkFailure();
+        }
+      }
+    }
+  }
+
+  /**
+   * Throw the failure of an earlier merge. Must be called holding the monitor.
+   */
+  private void checkFailure() {
+    if (failure != null) {
+      throw new IllegalStateException("A merge into the tree failed", failure);
+    }
+  }
+
+  /**
+   * Freeze the buffer and merge it in the background. Must be called
+   * holding the monitor, when no merge is running.
+   */
+  private void startMerge() {
+    HashSet<String> keys = buffer;
+    frozen = keys;
+    buffer = new HashSet<String>();
+    merger.execute(() -> merge(keys));
+  }
+
+  /**
+   * Merge a frozen set into the tree. Whatever happens the set is released
+   * and the waiting threads are woken, so that a failure is reported to
+   * them instead of leaving them waiting.
+   */
+  private void merge(HashSet<String> set) {
+    Throwable error = null;
+    try {
+      String[] keys = set.toArray(new String[0]);
+      Arrays.sort(keys);
+      for (int lo = 0; lo < keys.length; lo += MERGE_CHUNK) {
+        treeLock.writeLock().lock();
+        try {
+          tree.addAll(Arrays.copyOfRange(keys, lo, Math.min(keys.length, lo + MERGE_CHUNK)));
+        } finally {
+          treeLock.writeLock().unlock();
+        }
+      }
+    } catch (RuntimeException | Error e) {
+      error = e;
+      throw e;
+    } finally {
+      synchronized (this) {
+        frozen = null;
+        if (error == null) {
+          merges++;
+        } else if (failure == null) {
+          failure = error;
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Searches a specified key
+   * @param key the key to be searched
+   * @return true if the key is found, else false
+   */
+  public boolean contains(String key) {
+    HashSet<String> merging;
+    synchronized (this) {
+      if (buffer.contains(key)) {
+        return true;
+      }
+      merging = frozen;
+    }
+    // The frozen set is never changed, and a key leaves it only after it is in the tree
+    if (merging != null && merging.contains(key)) {
+      return true;
+    }
+    treeLock.readLock().lock();
+    try {
+      return tree.contains(key);
+    } finally {
+      treeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Merge all buffered keys into the tree and wait until it is done
+   * @throws IllegalStateException if a merge has failed
+   */
+  public void flush() {
+    synchronized (this) {
+      checkFailure();
+      while (frozen != null || !buffer.isEmpty()) {
+        if (frozen == null) {
+          startMerge();
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        checkFailure();
+      }
+    }
+  }
+
+  /**
+   * Compute the number of keys. Flushes the buffer first.
+   * @return the number of keys
+   */
+  public int size() {
+    flush();
+    treeLock.readLock().lock();
+    try {
+      return tree.size();
+    } finally {
+      treeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Construct an arraylist containing all keys in alphabetic order.
+   * Flushes the buffer first.
+   * @return an arraylist containing all keys
+   */
+  public ArrayList<String> toArrayList() {
+    flush();
+    treeLock.readLock().lock();
+    try {
+      return tree.toArrayList();
+    } finally {
+      treeLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of completed merges
+   */
+  public synchronized long merges() {
+    return merges;
+  }
+
+  /**
+   * Flush the buffer and stop the merge thread. The thread is stopped
+   * even if the flush fails. Later adds throw an IllegalStateException.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    try {
+      flush();
+    } finally {
+      merger.shutdown();
+    }
+  }
+
+  public String toString() {
+    return toArrayList().toString();
+  }
+
+  /**
+   * Main-method showing calls to and results from all methods above
+   */
+  public static void main(String[] args) {
+    BufferedBST closed;
+    try (BufferedBST t = new BufferedBST(3)) {
+      for (String key : new String[] {"C", "A", "KK", "T", "A", "Z", "H"}) {
+        t.add(key);
+      }
+      System.out.println("contains(KK): " + t.contains("KK") + ", contains(K): " + t.contains("K"));
+      System.out.println(t + ", size " + t.size() + ", merges " + t.merges());
+      closed = t;
+    }
+    try {
+      closed.add("Q");
+    } catch (IllegalStateException e) {
+      System.out.println("add after close: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,527 @@
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable sorted list with integers stored in compressed form.
+ * <p>
+ * The values are split into blocks of <code>BLOCK_SIZE</code> values. The
+ * first value of every block is kept uncompressed in a skip array, the rest
+ * of the block is stored as differences to the previous value using
+ * variable-byte encoding (7 bits per byte, high bit set on all but the last
+ * byte). Lookups use the skip array to find the right block and only decode
+ * that block. A dense range of values needs about one byte per value.
+ */
+public class CompressedSortedList {
+  /**
+   * Number of values in every block, i.e. the distance between skip pointers
+   */
+  public static final int BLOCK_SIZE = 128;
+
+  private final int size;
+  private final byte[] data;
+  private final int[] blockFirst;
+  private final int[] blockOffset;
+
+  private CompressedSortedList(int size, byte[] data, int[] blockFirst, int[] blockOffset) {
+    this.size = size;
+    this.data = data;
+    this.blockFirst = blockFirst;
+    this.blockOffset = blockOffset;
+  }
+
+  /**
+   * Create a compressed list from sorted values
+   * @param sorted values in non-decreasing order
+   * @return a compressed list containing the values
+   * @throws SortedList.ListException if the values are not sorted
+   */
+  public static CompressedSortedList of(int[] sorted) {
+    return of(sorted, sorted.length);
+  }
+
+  static CompressedSortedList of(int[] sorted, int n) {
+    int blocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int[] blockFirst = new int[blocks];
+    int[] blockOffset = new int[blocks];
+    int bytes = 0;
+    for (int i = 0; i < n; i++) {
+      if (i > 0 && sorted[i] < sorted[i - 1]) {
+        throw new SortedList.ListException("Values are not sorted at position " + i);
+      }
+      if (i % BLOCK_SIZE != 0) {
+        bytes += encodedLength(sorted[i] - sorted[i - 1]);
+      }
+    }
+    byte[] data = new byte[bytes];
+    int p = 0;
+    for (int i = 0; i < n; i++) {
+      if (i % BLOCK_SIZE == 0) {
+        blockFirst[i / BLOCK_SIZE] = sorted[i];
+        blockOffset[i / BLOCK_SIZE] = p;
+      } else {
+        int d = sorted[i] - sorted[i - 1];
+        while ((d & ~0x7F) != 0) {
+          data[p++] = (byte) ((d & 0x7F) | 0x80);
+          d >>>= 7;
+        }
+        data[p++] = (byte) d;
+      }
+    }
+    return new CompressedSortedList(n, data, blockFirst, blockOffset);
+  }
+
+  private static int encodedLength(int d) {
+    int len = 1;
+    while ((d & ~0x7F) != 0) {
+      d >>>= 7;
+      len++;
+    }
+    return len;
+  }
+
+  /**
+   * Decode a block into a buffer
+   * @return the number of values in the block
+   */
+  private int decodeBlock(int b, int[] buf) {
+    return decodeBlock(b, buf, 0);
+  }
+
+  private int decodeBlock(int b, int[] buf, int off) {
+    int n = Math.min(BLOCK_SIZE, size - b * BLOCK_SIZE);
+    int p = blockOffset[b];
+    int v = blockFirst[b];
+    buf[off] = v;
+    for (int i = off + 1; i < off + n; i++) {
+      int d = data[p++];
+      if (d < 0) {
+        d &= 0x7F;
+        int shift = 7;
+        int c;
+        do {
+          c = data[p++];
+          d |= (c & 0x7F) << shift;
+          shift += 7;
+        } while (c < 0);
+      }
+      v += d;
+      buf[i] = v;
+    }
+    return n;
+  }
+
+  /**
+   * Find the last block whose first value is at most x
+   * @return the block number or -1 if x is smaller than all values
+   */
+  private int blockFor(int x) {
+    int lo = 0;
+    int hi = blockFirst.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (blockFirst[mid] <= x) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return hi;
+  }
+
+  /**
+   * @return the number of values in the list
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of bytes used by the encoded values and skip arrays
+   */
+  public long bytesUsed() {
+    return data.length + 4L * blockFirst.length + 4L * blockOffset.length;
+  }
+
+  /**
+   * Estimate the memory used by the list including object headers
+   * @return the footprint with the blocks as nodes, the encoded values as
+   * keys and the skip arrays and the list object as other memory
+   */
+  public MemoryFootprint memoryFootprint() {
+    return new MemoryFootprint("CompressedSortedList", size, blockFirst.length, 0,
+                               MemoryFootprint.array(data.length, 1),
+                               MemoryFootprint.object(3, 4)
+                                 + MemoryFootprint.array(blockFirst.length, 4)
+                                 + MemoryFootprint.array(blockOffset.length, 4));
+  }
+
+  /**
+   * Check if a specified value is in the list.
+   * Runs in O(log(n/BLOCK_SIZE) + BLOCK_SIZE) time.
+   * @param x the value to be searched for
+   * @return <code>true</code> if the value is found, else <code>false</code>
+   */
+  public boolean contains(int x) {
+    int b = blockFor(x);
+    if (b < 0) {
+      return false;
+    } else if (blockFirst[b] == x) {
+      return true;
+    }
+    int n = Math.min(BLOCK_SIZE, size - b * BLOCK_SIZE);
+    int p = blockOffset[b];
+    int v = blockFirst[b];
+    for (int i = 1; i < n && v < x; i++) {
+      int d = data[p++];
+      if (d < 0) {
+        d &= 0x7F;
+        int shift = 7;
+        int c;
+        do {
+          c = data[p++];
+          d |= (c & 0x7F) << shift;
+          shift += 7;
+        } while (c < 0);
+      }
+      v += d;
+    }
+    return v == x;
+  }
+
+  /**
+   * Compute the rank of a value, i.e. the number of values smaller than it.
+   * Runs in O(log(n/BLOCK_SIZE) + BLOCK_SIZE) time.
+   * @param x the value to be ranked
+   * @return the number of values less than x
+   */
+  public int rank(int x) {
+    return countBelow(x);
+  }
+
+  /**
+   * Count the values in a closed range.
+   * Runs in O(log(n/BLOCK_SIZE) + BLOCK_SIZE) time.
+   * @param lo the smallest value to be counted
+   * @param hi the largest value to be counted
+   * @return the number of values x with lo &lt;= x &lt;= hi
+   */
+  public int countInRange(int lo, int hi) {
+    if (lo > hi) {
+      return 0;
+    }
+    return countBelow(hi + 1L) - countBelow(lo);
+  }
+
+  /**
+   * Count the values less than x, decoding only the block where x belongs
+   */
+  private int countBelow(long x) {
+    int lo = 0;
+    int hi = blockFirst.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (blockFirst[mid] < x) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    int b = hi;
+    if (b < 0) {
+      return 0;
+    }
+    int n = Math.min(BLOCK_SIZE, size - b * BLOCK_SIZE);
+    int p = blockOffset[b];
+    long v = blockFirst[b];
+    int count = 1;
+    while (count < n) {
+      int d = data[p++];
+      if (d < 0) {
+        d &= 0x7F;
+        int shift = 7;
+        int c;
+        do {
+          c = data[p++];
+          d |= (c & 0x7F) << shift;
+          shift += 7;
+        } while (c < 0);
+      }
+      v += d & 0xFFFFFFFFL;
+      if (v >= x) {
+        break;
+      }
+      count++;
+    }
+    return b * BLOCK_SIZE + count;
+  }
+
+  /**
+   * Find the value at a specified position. Only the block holding the
+   * position is decoded.
+   * @param i the position to be checked
+   * @return the value at position <code>i</code>
+   * @throws SortedList.ListException if <code>i</code> specifies a nonexistent position
+   */
+  public int atIndex(int i) {
+    if (i < 0 || i >= size) {
+      throw new SortedList.ListException("Index does not exist!");
+    }
+    int p = blockOffset[i / BLOCK_SIZE];
+    int v = blockFirst[i / BLOCK_SIZE];
+    for (int k = i % BLOCK_SIZE; k > 0; k--) {
+      int d = data[p++];
+      if (d < 0) {
+        d &= 0x7F;
+        int shift = 7;
+        int c;
+        do {
+          c = data[p++];
+          d |= (c & 0x7F) << shift;
+          shift += 7;
+        } while (c < 0);
+      }
+      v += d;
+    }
+    return v;
+  }
+
+  /**
+   * Find the last (i.e. the largest) value in the list
+   * @return the value of the last item
+   * @throws SortedList.ListException if the list is empty
+   */
+  public int getLast() {
+    if (size == 0) {
+      throw new SortedList.ListException("This list is empty!");
+    }
+    return atIndex(size - 1);
+  }
+
+  /**
+   * Pass all values, in order, to an action
+   * @param action the action to be performed for every value
+   */
+  public void forEach(IntConsumer action) {
+    int[] buf = new int[BLOCK_SIZE];
+    for (int b = 0; b < blockFirst.length; b++) {
+      int n = decodeBlock(b, buf);
+      for (int i = 0; i < n; i++) {
+        action.accept(buf[i]);
+      }
+    }
+  }
+
+  /**
+   * @return an array containing all values in order
+   */
+  public int[] toArray() {
+    int[] result = new int[size];
+    for (int b = 0; b < blockFirst.length; b++) {
+      decodeBlock(b, result, b * BLOCK_SIZE);
+    }
+    return result;
+  }
+
+  /**
+   * Merge this list with another list, keeping duplicates as
+   * <code>SortedList.merge</code> does.
+   * Should run in O(n+m) time if the list are of length n and m.
+   * @param l the other list to be used
+   * @return a new compressed list containing the values of both lists
+   */
+  public CompressedSortedList merge(CompressedSortedList l) {
+    int[] a = toArray();
+    int[] b = l.toArray();
+    int[] result = new int[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int k = 0;
+    while (i < a.length && j < b.length) {
+      result[k++] = a[i] <= b[j] ? a[i++] : b[j++];
+    }
+    while (i < a.length) {
+      result[k++] = a[i++];
+    }
+    while (j < b.length) {
+      result[k++] = b[j++];
+    }
+    return of(result);
+  }
+
+  /**
+   * Compute the intersection of this list and another list. Duplicates are
+   * collapsed. The smaller list is scanned and the larger list is searched
+   * with galloping over its skip pointers, so blocks of the larger list
+   * that cannot contain a match are never decoded.
+   * @param l the other list to be used
+   * @return a new compressed list containing the values found in both lists
+   */
+  public CompressedSortedList intersect(CompressedSortedList l) {
+    CompressedSortedList small = size <= l.size ? this : l;
+    CompressedSortedList large = small == this ? l : this;
+    int[] result = new int[small.size];
+    int n = 0;
+    Cursor c = large.new Cursor();
+    int[] buf = new int[BLOCK_SIZE];
+    for (int b = 0; b < small.blockFirst.length; b++) {
+      int len = small.decodeBlock(b, buf);
+      for (int i = 0; i < len; i++) {
+        int x = buf[i];
+        if (n > 0 && result[n - 1] == x) {
+          continue;
+        }
+        if (!c.advanceTo(x)) {
+          return of(result, n);
+        }
+        if (c.value() == x) {
+          result[n++] = x;
+        }
+      }
+    }
+    return of(result, n);
+  }
+
+  /**
+   * Count the distinct values found in both lists without building a result.
+   * @param l the other list to be used
+   * @return the size that <code>intersect(l)</code> would have
+   */
+  public int intersectionSize(CompressedSortedList l) {
+    CompressedSortedList small = size <= l.size ? this : l;
+    CompressedSortedList large = small == this ? l : this;
+    int count = 0;
+    boolean any = false;
+    int last = 0;
+    Cursor c = large.new Cursor();
+    int[] buf = new int[BLOCK_SIZE];
+    for (int b = 0; b < small.blockFirst.length; b++) {
+      int len = small.decodeBlock(b, buf);
+      for (int i = 0; i < len; i++) {
+        int x = buf[i];
+        if (any && last == x) {
+          continue;
+        }
+        if (!c.advanceTo(x)) {
+          return count;
+        }
+        if (c.value() == x) {
+          count++;
+          any = true;
+          last = x;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Forward-only position in the list used for galloping search
+   */
+  private class Cursor {
+    private final int[] buf = new int[BLOCK_SIZE];
+    private int block = -1;
+    private int len = 0;
+    private int pos = 0;
+
+    /**
+     * Move forward to the first value that is at least x
+     * @return <code>false</code> if there is no such value
+     */
+    boolean advanceTo(int x) {
+      if (size == 0) {
+        return false;
+      }
+      if (block < 0) {
+        load(0);
+      }
+      // Gallop over the skip pointers to the last block starting below x
+      int target = block;
+      int step = 1;
+      while (target + step < blockFirst.length && blockFirst[target + step] < x) {
+        target += step;
+        step <<= 1;
+      }
+      int lo = target + 1;
+      int hi = Math.min(target + step, blockFirst.length) - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (blockFirst[mid] < x) {
+          target = mid;
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      if (target != block) {
+        load(target);
+      }
+      // Gallop inside the decoded block
+      if (buf[pos] < x) {
+        int p = pos;
+        step = 1;
+        while (p + step < len && buf[p + step] < x) {
+          p += step;
+          step <<= 1;
+        }
+        lo = p + 1;
+        hi = Math.min(p + step, len - 1);
+        while (lo < hi) {
+          int mid = (lo + hi) >>> 1;
+          if (buf[mid] < x) {
+            lo = mid + 1;
+          } else {
+            hi = mid;
+          }
+        }
+        pos = lo;
+        if (pos >= len || buf[pos] < x) {
+          if (block + 1 >= blockFirst.length) {
+            return false;
+          }
+          load(block + 1);
+        }
+      }
+      return true;
+    }
+
+    int value() {
+      return buf[pos];
+    }
+
+    private void load(int b) {
+      block = b;
+      len = decodeBlock(b, buf);
+      pos = 0;
+    }
+  }
+
+  public String toString() {
+    StringBuilder result = new StringBuilder("(");
+    forEach(x -> result.append(' ').append(x));
+    return result.append(')').toString();
+  }
+
+  /**
+   * Main method trying the methods above
+   */
+  public static void main(String[] args) {
+    SortedList p = new SortedList();
+    for (int i = 0; i < 300; i += 3) {
+      p.add(i);
+    }
+    CompressedSortedList c = p.compress();
+    System.out.println("c: " + c);
+    System.out.println("Size: " + c.size() + ", bytes: " + c.bytesUsed());
+    System.out.println("contains(150): " + c.contains(150));
+    System.out.println("contains(151): " + c.contains(151));
+    System.out.println("atIndex(50): " + c.atIndex(50));
+    System.out.println("getLast(): " + c.getLast());
+    System.out.println("rank(150): " + c.rank(150));
+    System.out.println("countInRange(10, 20): " + c.countInRange(10, 20));
+
+    CompressedSortedList d = CompressedSortedList.of(new int[] {0, 2, 4, 6, 8, 10, 12, 200, 297});
+    System.out.println("d: " + d);
+    System.out.println("c.intersect(d): " + c.intersect(d));
+    System.out.println("c.intersectionSize(d): " + c.intersectionSize(d));
+    System.out.println("d.merge(d): " + d.merge(d));
+  }
+}
@@ -0,0 +1,343 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicMarkableReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe sorted list with integers.
+ * <p>
+ * A lock-free linked list in the style of Harris and Michael. A node is
+ * removed by first marking its <code>next</code> reference (logical
+ * deletion) and then unlinking it with a compare-and-set on the
+ * predecessor. Any thread that meets a marked node while searching helps
+ * unlinking it. <code>add</code> and <code>remove</code> are lock-free,
+ * <code>contains</code> never writes and never retries, and iteration is
+ * weakly consistent. As in <code>SortedList</code> duplicates are allowed.
+ */
+public class ConcurrentSortedList {
+  private static class Node {
+    final int data;
+    final AtomicMarkableReference<Node> next;
+
+    Node(int data, Node next) {
+      this.data = data;
+      this.next = new AtomicMarkableReference<Node>(next, false);
+    }
+  }
+
+  /**
+   * Pair of adjacent nodes found by a search
+   */
+  private static class Window {
+    final Node pred;
+    final Node curr;
+
+    Window(Node pred, Node curr) {
+      this.pred = pred;
+      this.curr = curr;
+    }
+  }
+
+  /**
+   * Sentinel node, its data is never compared
+   */
+  private final Node head = new Node(0, null);
+  private final LongAdder count = new LongAdder();
+
+  /**
+   * Find the first unmarked node whose data is at least x (or greater than
+   * x if <code>after</code> is set) and its predecessor. Marked nodes on
+   * the way are unlinked.
+   */
+  private Window find(int x, boolean after) {
+    boolean[] marked = {false};
+    retry:
+    while (true) {
+      Node pred = head;
+      Node curr = pred.next.getReference();
+      while (true) {
+        if (curr == null) {
+          return new Window(pred, null);
+        }
+        Node succ = curr.next.get(marked);
+        while (marked[0]) {
+          if (!pred.next.compareAndSet(curr, succ, false, false)) {
+            continue retry;
+          }
+          curr = succ;
+          if (curr == null) {
+            return new Window(pred, null);
+          }
+          succ = curr.next.get(marked);
+        }
+        if (after ? curr.data > x : curr.data >= x) {
+          return new Window(pred, curr);
+        }
+        pred = curr;
+        curr = succ;
+      }
+    }
+  }
+
+  /**
+   * Insert a value preserving the sorted order. Equal values are placed
+   * after those already in the list.
+   * @param x the value to be inserted
+   */
+  public void add(int x) {
+    while (true) {
+      Window w = find(x, true);
+      Node n = new Node(x, w.curr);
+      if (w.pred.next.compareAndSet(w.curr, n, false, false)) {
+        count.increment();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Remove the first node with a specified value. Unlike
+   * <code>SortedList.remove</code> a missing value is not an error, since
+   * checking with <code>contains</code> first would be racy.
+   * @param x the value to be removed
+   * @return <code>true</code> if a node was removed by this call
+   */
+  public boolean remove(int x) {
+    while (true) {
+      Window w = find(x, false);
+      if (w.curr == null || w.curr.data != x) {
+        return false;
+      }
+      if (unlink(w)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Remove the first (i.e. the smallest) value
+   * @return the removed value
+   * @throws SortedList.ListException if the list is empty
+   */
+  public int removeFirst() {
+    while (true) {
+      Window w = find(Integer.MIN_VALUE, false);
+      if (w.curr == null) {
+        throw new SortedList.ListException("Empty list in removeFirst");
+      }
+      if (unlink(w)) {
+        return w.curr.data;
+      }
+    }
+  }
+
+  /**
+   * Mark w.curr as deleted and try to unlink it once
+   * @return <code>false</code> if another thread changed the node first
+   */
+  private boolean unlink(Window w) {
+    Node succ = w.curr.next.getReference();
+    if (!w.curr.next.compareAndSet(succ, succ, false, true)) {
+      return false;
+    }
+    count.decrement();
+    w.pred.next.compareAndSet(w.curr, succ, false, false);
+    return true;
+  }
+
+  /**
+   * Check if a specified value is in the list. Wait-free: the list is
+   * traversed once without writes or retries.
+   * @param x the value to be searched for
+   * @return <code>true</code> if the value is found, else <code>false</code>
+   */
+  public boolean contains(int x) {
+    Node curr = head.next.getReference();
+    while (curr != null && curr.data < x) {
+      curr = curr.next.getReference();
+    }
+    while (curr != null && curr.data == x) {
+      if (!curr.next.isMarked()) {
+        return true;
+      }
+      curr = curr.next.getReference();
+    }
+    return false;
+  }
+
+  /**
+   * @return the number of values, exact when no updates are in progress
+   */
+  public int size() {
+    return count.intValue();
+  }
+
+  /**
+   * Create a weakly consistent iterator. It never throws
+   * ConcurrentModificationException and reflects some but not necessarily
+   * all updates made after its creation.
+   * @return an iterator over the values in ascending order
+   */
+  public PrimitiveIterator.OfInt iterator() {
+    return new PrimitiveIterator.OfInt() {
+      private Node next = advance(head);
+
+      private Node advance(Node n) {
+        Node t = n.next.getReference();
+        while (t != null && t.next.isMarked()) {
+          t = t.next.getReference();
+        }
+        return t;
+      }
+
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      public int nextInt() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        int result = next.data;
+        next = advance(next);
+        return result;
+      }
+    };
+  }
+
+  /**
+   * @return an array with a weakly consistent snapshot of the values
+   */
+  public int[] toIntArray() {
+    int[] result = new int[Math.max(16, size())];
+    int n = 0;
+    for (PrimitiveIterator.OfInt it = iterator(); it.hasNext();) {
+      if (n == result.length) {
+        result = Arrays.copyOf(result, 2 * n);
+      }
+      result[n++] = it.nextInt();
+    }
+    return Arrays.copyOf(result, n);
+  }
+
+  public String toString() {
+    StringBuilder result = new StringBuilder("(");
+    for (PrimitiveIterator.OfInt it = iterator(); it.hasNext();) {
+      result.append(' ').append(it.nextInt());
+    }
+    return result.append(')').toString();
+  }
+
+  /**
+   * Multi-threaded stress test. Every check below must hold in any
+   * linearizable execution of add, remove and contains.
+   * Usage: java ConcurrentSortedList [threads] [values per thread]
+   */
+  public static void main(String[] args) throws InterruptedException {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    int stable = -1;      // never removed, readers must always see it
+    int absent = -2;      // never inserted, readers must never see it
+    int shared = -3;      // added and removed by all threads
+    ConcurrentSortedList list = new ConcurrentSortedList();
+    list.add(stable);
+
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicBoolean done = new AtomicBoolean(false);
+    AtomicBoolean failed = new AtomicBoolean(false);
+    LongAdder sharedRemoved = new LongAdder();
+    Thread[] writers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      int id = t;
+      writers[t] = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        // Every thread owns the values congruent to id modulo threads
+        for (int i = 0; i < perThread; i++) {
+          int x = i * threads + id;
+          list.add(x);
+          if (!list.contains(x)) {
+            System.out.println("FAIL: own value " + x + " not visible after add");
+            failed.set(true);
+          }
+          list.add(shared);
+          if (i % 2 == 0) {
+            if (!list.remove(x)) {
+              System.out.println("FAIL: could not remove own value " + x);
+              failed.set(true);
+            }
+            if (list.contains(x)) {
+              System.out.println("FAIL: own value " + x + " visible after remove");
+              failed.set(true);
+            }
+          }
+          if (i % 3 == 0 && list.remove(shared)) {
+            sharedRemoved.increment();
+          }
+        }
+      });
+      writers[t].start();
+    }
+    Thread reader = new Thread(() -> {
+      while (!done.get()) {
+        if (!list.contains(stable) || list.contains(absent)) {
+          System.out.println("FAIL: contains saw a wrong answer for a fixed value");
+          failed.set(true);
+        }
+        int[] snapshot = list.toIntArray();
+        for (int i = 1; i < snapshot.length; i++) {
+          if (snapshot[i - 1] > snapshot[i]) {
+            System.out.println("FAIL: iteration out of order");
+            failed.set(true);
+          }
+        }
+      }
+    });
+    reader.start();
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread w : writers) {
+      w.join();
+    }
+    long time = System.nanoTime() - begin;
+    done.set(true);
+    reader.join();
+
+    // Final state: the odd-indexed own values, the stable value and the
+    // shared values that were never removed
+    int expectedShared = threads * perThread - sharedRemoved.intValue();
+    int[] result = list.toIntArray();
+    int own = 0;
+    int sharedLeft = 0;
+    for (int x : result) {
+      if (x == shared) {
+        sharedLeft++;
+      } else if (x >= 0) {
+        own++;
+        if ((x / threads) % 2 == 0) {
+          System.out.println("FAIL: removed value " + x + " still in list");
+          failed.set(true);
+        }
+      }
+    }
+    if (own != threads * (perThread / 2) || sharedLeft != expectedShared
+          || result.length != list.size() || !list.contains(stable)) {
+      System.out.println("FAIL: final contents do not match, own=" + own
+                           + " shared=" + sharedLeft + "/" + expectedShared
+                           + " size=" + list.size() + "/" + result.length);
+      failed.set(true);
+    }
+    System.out.printf("%d threads, %d operations in %.0f ms: %s%n",
+                      threads, threads * perThread * 5L, time / 1e6,
+                      failed.get() ? "FAILED" : "all checks passed");
+    if (failed.get()) {
+      System.exit(1);
+    }
+  }
+}
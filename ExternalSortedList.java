@@ -0,0 +1,488 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sorted list with integers that keeps most of its values on disk.
+ * <p>
+ * New values are collected in an in-memory run of bounded size. When the
+ * run is full it is sorted and written to a temporary file (a spilled
+ * run) that stays memory-mapped, so reads go straight to the page cache
+ * without copying. Every spilled run has a sparse in-memory index with
+ * the first value of every block of 4096 values, so <code>contains</code>
+ * costs one binary search in the index and one in a block per run. When
+ * there are too many runs they are merged into one. Iteration and
+ * <code>merge</code> read the runs sequentially in a k-way merge.
+ * <p>
+ * As in <code>SortedList</code> duplicates are allowed. Values cannot be
+ * removed. The files of a list are kept in a directory of their own.
+ * Merged runs are deleted at once, and <code>close</code> deletes the
+ * directory. A shutdown hook deletes the directories of lists that are
+ * still open when the JVM exits.
+ */
+public class ExternalSortedList implements AutoCloseable {
+  private static final int INDEX_STRIDE = 4096;
+  private static final int SEGMENT_SHIFT = 27;            // 2^27 ints = 512 MB per mapping
+  private static final int SEGMENT_INTS = 1 << SEGMENT_SHIFT;
+  private static final int MAX_RUNS = 16;
+
+  /**
+   * A sorted sequence of values, in mapped files or in memory
+   */
+  private static class Run {
+    final IntBuffer[] segments;
+    final long length;
+    final int[] index;   // the first value of every block of INDEX_STRIDE values
+    final Path file;     // null for an in-memory run
+
+    Run(IntBuffer[] segments, long length, Path file) {
+      this.segments = segments;
+      this.length = length;
+      this.file = file;
+      this.index = new int[(int) ((length + INDEX_STRIDE - 1) / INDEX_STRIDE)];
+      for (int b = 0; b < index.length; b++) {
+        index[b] = get((long) b * INDEX_STRIDE);
+      }
+    }
+
+    int get(long i) {
+      return segments[(int) (i >>> SEGMENT_SHIFT)].get((int) (i & (SEGMENT_INTS - 1)));
+    }
+
+    boolean contains(int x) {
+      // The first block starting at x or later; x can only be there or in
+      // the block before
+      int lo = 0;
+      int hi = index.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (index[mid] < x) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      if (lo < index.length && index[lo] == x) {
+        return true;
+      } else if (lo == 0) {
+        return false;
+      }
+      long from = (long) (lo - 1) * INDEX_STRIDE;
+      long to = Math.min(length, from + INDEX_STRIDE) - 1;
+      while (from <= to) {
+        long mid = (from + to) >>> 1;
+        int v = get(mid);
+        if (v < x) {
+          from = mid + 1;
+        } else if (v > x) {
+          to = mid - 1;
+        } else {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** the spill directories of open lists, deleted by the shutdown hook */
+  private static final Set<Path> OPEN_DIRS = ConcurrentHashMap.newKeySet();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (Path d : OPEN_DIRS) {
+        try {
+          deleteDirectory(d);
+        } catch (UncheckedIOException e) {
+          // nothing more can be done while exiting
+        }
+      }
+    }, "ExternalSortedList cleanup"));
+  }
+
+  private final Path dir;
+  private Path spillDir;   // created at the first spill
+  private final int[] buffer;
+  private int buffered;
+  private int sortedPrefix;   // buffer[0..sortedPrefix) is sorted
+  private final ArrayList<Run> runs = new ArrayList<Run>();
+  private long size;
+
+  /**
+   * Create an empty list spilling to the default temporary directory
+   * @param runCapacity the number of values kept in memory before a spill
+   */
+  public ExternalSortedList(int runCapacity) {
+    this(runCapacity, Path.of(System.getProperty("java.io.tmpdir")));
+  }
+
+  /**
+   * @param runCapacity the number of values kept in memory before a spill
+   * @param dir the directory for the temporary files
+   */
+  public ExternalSortedList(int runCapacity, Path dir) {
+    if (runCapacity < 1) {
+      throw new SortedList.ListException("The run capacity must be positive");
+    }
+    this.buffer = new int[runCapacity];
+    this.dir = dir;
+  }
+
+  /**
+   * Add a value
+   * @param x the value to be added
+   */
+  public void add(int x) {
+    buffer[buffered++] = x;
+    size++;
+    if (buffered == buffer.length) {
+      spill();
+    }
+  }
+
+  /**
+   * Add all values in an array
+   * @param values the values to be added, in any order
+   */
+  public void addAll(int[] values) {
+    for (int x : values) {
+      add(x);
+    }
+  }
+
+  /**
+   * Sort the in-memory run and write it to a file
+   */
+  private void spill() {
+    Arrays.sort(buffer, 0, buffered);
+    int[] values = buffer;
+    int n = buffered;
+    runs.add(write(spillDir(), new PrimitiveIterator.OfInt() {
+      private int i;
+
+      public boolean hasNext() {
+        return i < n;
+      }
+
+      public int nextInt() {
+        return values[i++];
+      }
+    }, n));
+    buffered = 0;
+    sortedPrefix = 0;
+    if (runs.size() > MAX_RUNS) {
+      compact();
+    }
+  }
+
+  /**
+   * @return the directory of the spilled runs, created on first use
+   */
+  private Path spillDir() {
+    if (spillDir == null) {
+      try {
+        spillDir = Files.createTempDirectory(dir, "sortedlist");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      OPEN_DIRS.add(spillDir);
+    }
+    return spillDir;
+  }
+
+  /**
+   * Write sorted values to a new memory-mapped file
+   */
+  private static Run write(Path dir, PrimitiveIterator.OfInt values, long n) {
+    Path file = null;
+    try {
+      file = Files.createTempFile(dir, "run", ".ints");
+      IntBuffer[] segments = new IntBuffer[(int) ((n + SEGMENT_INTS - 1) >>> SEGMENT_SHIFT)];
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        for (int s = 0; s < segments.length; s++) {
+          long first = (long) s << SEGMENT_SHIFT;
+          int ints = (int) Math.min(SEGMENT_INTS, n - first);
+          segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, 4 * first, 4L * ints)
+            .order(ByteOrder.nativeOrder()).asIntBuffer();
+          for (int i = 0; i < ints; i++) {
+            segments[s].put(i, values.nextInt());
+          }
+        }
+      }
+      return new Run(segments, n, file);
+    } catch (IOException e) {
+      if (file != null) {
+        file.toFile().delete();
+      }
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Merge all spilled runs into one. Called automatically when there are
+   * too many runs.
+   */
+  public void compact() {
+    if (runs.size() < 2) {
+      return;
+    }
+    long n = 0;
+    for (Run r : runs) {
+      n += r.length;
+    }
+    Run merged = write(spillDir(), merger(runs), n);
+    delete(runs);
+    runs.clear();
+    runs.add(merged);
+  }
+
+  private static void delete(ArrayList<Run> runs) {
+    for (Run r : runs) {
+      try {
+        if (r.file != null) {
+          Files.deleteIfExists(r.file);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Delete a spill directory and the runs left in it
+   */
+  private static void deleteDirectory(Path d) {
+    try {
+      try (var files = Files.list(d)) {
+        for (Path f : (Iterable<Path>) files::iterator) {
+          Files.deleteIfExists(f);
+        }
+      }
+      Files.deleteIfExists(d);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return the number of values
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * @return the number of spilled runs
+   */
+  public int runs() {
+    return runs.size();
+  }
+
+  /**
+   * Check if a specified value is in the list
+   * @param x the value to be searched for
+   * @return <code>true</code> if the value is found, else <code>false</code>
+   */
+  public boolean contains(int x) {
+    // Values added since the last sort are scanned, the rest binary searched
+    if (buffered - sortedPrefix > INDEX_STRIDE) {
+      Arrays.sort(buffer, 0, buffered);
+      sortedPrefix = buffered;
+    }
+    if (Arrays.binarySearch(buffer, 0, sortedPrefix, x) >= 0) {
+      return true;
+    }
+    for (int i = sortedPrefix; i < buffered; i++) {
+      if (buffer[i] == x) {
+        return true;
+      }
+    }
+    for (Run r : runs) {
+      if (r.contains(x)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * All runs including a sorted copy of the in-memory run
+   */
+  private ArrayList<Run> snapshot() {
+    ArrayList<Run> all = new ArrayList<Run>(runs);
+    if (buffered > 0) {
+      int[] sorted = Arrays.copyOf(buffer, buffered);
+      Arrays.sort(sorted);
+      all.add(new Run(new IntBuffer[] {IntBuffer.wrap(sorted)}, sorted.length, null));
+    }
+    return all;
+  }
+
+  /**
+   * Create an iterator over the values in ascending order. Values added
+   * after the call are not included.
+   * @return an iterator over the values
+   */
+  public PrimitiveIterator.OfInt iterator() {
+    return merger(snapshot());
+  }
+
+  /**
+   * K-way merge of sorted runs with a binary heap of run numbers ordered
+   * by their current values
+   */
+  private static PrimitiveIterator.OfInt merger(ArrayList<Run> sources) {
+    Run[] rs = sources.toArray(new Run[0]);
+    long[] pos = new long[rs.length];
+    int[] heap = new int[rs.length];
+    int n = 0;
+    for (int i = 0; i < rs.length; i++) {
+      if (rs[i].length > 0) {
+        heap[n++] = i;
+      }
+    }
+    int live = n;
+    return new PrimitiveIterator.OfInt() {
+      private int heapSize = live;
+
+      {
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+          down(i);
+        }
+      }
+
+      private int value(int h) {
+        return rs[heap[h]].get(pos[heap[h]]);
+      }
+
+      private void down(int i) {
+        while (true) {
+          int smallest = i;
+          int l = 2 * i + 1;
+          int r = l + 1;
+          if (l < heapSize && value(l) < value(smallest)) {
+            smallest = l;
+          }
+          if (r < heapSize && value(r) < value(smallest)) {
+            smallest = r;
+          }
+          if (smallest == i) {
+            return;
+          }
+          int t = heap[i];
+          heap[i] = heap[smallest];
+          heap[smallest] = t;
+          i = smallest;
+        }
+      }
+
+      public boolean hasNext() {
+        return heapSize > 0;
+      }
+
+      public int nextInt() {
+        if (heapSize == 0) {
+          throw new NoSuchElementException();
+        }
+        int run = heap[0];
+        int result = rs[run].get(pos[run]++);
+        if (pos[run] == rs[run].length) {
+          heap[0] = heap[--heapSize];
+        }
+        down(0);
+        return result;
+      }
+    };
+  }
+
+  /**
+   * Merge this list with another list into a new list whose values are in
+   * one spilled run. Both lists are read sequentially and left unchanged.
+   * @param l the list to be merged with this list
+   * @return a new list containing all values of both lists
+   */
+  public ExternalSortedList merge(ExternalSortedList l) {
+    ArrayList<Run> all = snapshot();
+    all.addAll(l.snapshot());
+    ExternalSortedList result = new ExternalSortedList(buffer.length, dir);
+    result.size = size + l.size;
+    if (result.size > 0) {
+      result.runs.add(write(result.spillDir(), merger(all), result.size));
+    }
+    return result;
+  }
+
+  /**
+   * @return an array with all values in ascending order
+   * @throws SortedList.ListException if there are too many values for an array
+   */
+  public int[] toIntArray() {
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new SortedList.ListException("Too many values for an array: " + size);
+    }
+    int[] result = new int[(int) size];
+    PrimitiveIterator.OfInt it = iterator();
+    for (int i = 0; i < result.length; i++) {
+      result[i] = it.nextInt();
+    }
+    return result;
+  }
+
+  /**
+   * @return an in-memory SortedList with the same values
+   */
+  public SortedList toSortedList() {
+    return SortedList.of(toIntArray());
+  }
+
+  /**
+   * Delete the temporary files and their directory
+   */
+  public void close() {
+    delete(runs);
+    runs.clear();
+    if (spillDir != null) {
+      deleteDirectory(spillDir);
+      OPEN_DIRS.remove(spillDir);
+      spillDir = null;
+    }
+    buffered = 0;
+    sortedPrefix = 0;
+    size = 0;
+  }
+
+  public String toString() {
+    StringBuilder result = new StringBuilder("(");
+    for (PrimitiveIterator.OfInt it = iterator(); it.hasNext();) {
+      result.append(' ').append(it.nextInt());
+    }
+    return result.append(')').toString();
+  }
+
+  /**
+   * Main-method showing calls to and results from all methods above
+   */
+  public static void main(String[] args) {
+    try (ExternalSortedList a = new ExternalSortedList(3);
+         ExternalSortedList b = new ExternalSortedList(2)) {
+      a.addAll(new int[] {5, 7, 3, 1, 9, 3, 8});
+      System.out.println("a: " + a + ", size " + a.size() + ", spilled runs " + a.runs());
+      System.out.println("a.contains(3): " + a.contains(3) + ", a.contains(4): " + a.contains(4));
+      b.addAll(new int[] {4, 2, 6});
+      try (ExternalSortedList m = a.merge(b)) {
+        System.out.println("a.merge(b): " + m + ", spilled runs " + m.runs());
+        System.out.println("As SortedList: " + m.toSortedList());
+      }
+    }
+  }
+}
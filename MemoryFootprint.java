@@ -0,0 +1,230 @@
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Estimated memory use of a data structure, split into nodes, keys and
+ * other memory (caches, filters, buffer slack).
+ * <p>
+ * The estimates are computed from counters the structures maintain, not
+ * by walking them, so a report is cheap. Object sizes follow the layout
+ * of the running JVM: with compressed oops (the default for heaps below
+ * 32 GB) a reference takes 4 bytes and an object header 12 bytes, without
+ * them 8 and 16 bytes, and every object is padded to the object alignment.
+ * Keys are counted as if no other structure shared the strings.
+ */
+public class MemoryFootprint {
+  /**
+   * The object layout of the running JVM, looked up on first use since
+   * the management beans take a while to load
+   */
+  private static final class Layout {
+    static final boolean COMPRESSED_OOPS;
+    static final int HEADER;
+    static final int REFERENCE;
+    static final int ALIGNMENT;
+
+    static {
+      boolean oops = true;
+      boolean classPointers = true;
+      int alignment = 8;
+      try {
+        HotSpotDiagnosticMXBean vm = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        oops = Boolean.parseBoolean(vm.getVMOption("UseCompressedOops").getValue());
+        classPointers = Boolean.parseBoolean(vm.getVMOption("UseCompressedClassPointers").getValue());
+        alignment = Integer.parseInt(vm.getVMOption("ObjectAlignmentInBytes").getValue());
+      } catch (RuntimeException e) {
+        // Not HotSpot; assume the default 64-bit layout
+      }
+      COMPRESSED_OOPS = oops;
+      REFERENCE = oops ? 4 : 8;
+      HEADER = classPointers ? 12 : 16;
+      ALIGNMENT = alignment;
+    }
+  }
+
+  /**
+   * @return true if references take 4 bytes
+   */
+  public static boolean compressedOops() {
+    return Layout.COMPRESSED_OOPS;
+  }
+
+  /**
+   * @return the size of an object header in bytes
+   */
+  public static int header() {
+    return Layout.HEADER;
+  }
+
+  /**
+   * @return the size of a reference in bytes
+   */
+  public static int reference() {
+    return Layout.REFERENCE;
+  }
+
+  /**
+   * @return the number of bytes objects are aligned to
+   */
+  public static int alignment() {
+    return Layout.ALIGNMENT;
+  }
+
+  private final String structure;
+  private final long elements;
+  private final long nodes;
+  private final long nodeBytes;
+  private final long keyBytes;
+  private final long otherBytes;
+
+  /**
+   * @param structure the name of the structure
+   * @param elements the number of stored keys or values
+   * @param nodes the number of nodes (or blocks)
+   * @param nodeBytes the bytes in the nodes
+   * @param keyBytes the bytes in keys stored outside the nodes
+   * @param otherBytes the bytes in everything else
+   */
+  public MemoryFootprint(String structure, long elements, long nodes,
+                         long nodeBytes, long keyBytes, long otherBytes) {
+    this.structure = structure;
+    this.elements = elements;
+    this.nodes = nodes;
+    this.nodeBytes = nodeBytes;
+    this.keyBytes = keyBytes;
+    this.otherBytes = otherBytes;
+  }
+
+  /**
+   * @return the size of a number of bytes padded to the object alignment
+   */
+  public static long align(long bytes) {
+    int alignment = Layout.ALIGNMENT;
+    return (bytes + alignment - 1) / alignment * alignment;
+  }
+
+  /**
+   * @param references the number of reference fields
+   * @param primitiveBytes the total size of the primitive fields
+   * @return the size of an object
+   */
+  public static long object(int references, int primitiveBytes) {
+    return align(Layout.HEADER + (long) references * Layout.REFERENCE + primitiveBytes);
+  }
+
+  /**
+   * @param length the number of elements
+   * @param elementBytes the size of an element, reference() for object arrays
+   * @return the size of an array
+   */
+  public static long array(long length, int elementBytes) {
+    return align(Layout.HEADER + 4 + length * elementBytes);
+  }
+
+  /**
+   * Estimate the size of many strings from their total length, so that
+   * structures only need to count characters when keys are added. The
+   * strings are assumed to hold Latin-1 characters, one byte each, and
+   * the padding of the character arrays to average half the alignment.
+   * @param count the number of strings
+   * @param chars the total number of characters
+   * @return the size of the strings and their character arrays
+   */
+  public static long strings(long count, long chars) {
+    // value, hash, coder and hashIsZero
+    return count * (object(1, 6) + Layout.HEADER + 4 + (Layout.ALIGNMENT - 1) / 2) + chars;
+  }
+
+  public String structure() {
+    return structure;
+  }
+
+  public long elements() {
+    return elements;
+  }
+
+  public long nodes() {
+    return nodes;
+  }
+
+  public long nodeBytes() {
+    return nodeBytes;
+  }
+
+  public long keyBytes() {
+    return keyBytes;
+  }
+
+  public long otherBytes() {
+    return otherBytes;
+  }
+
+  public long totalBytes() {
+    return nodeBytes + keyBytes + otherBytes;
+  }
+
+  /**
+   * @return the average number of bytes per element
+   */
+  public double bytesPerElement() {
+    return elements == 0 ? 0 : (double) totalBytes() / elements;
+  }
+
+  /**
+   * Project the footprint to another number of elements, assuming that
+   * the nodes and keys grow linearly and the other memory stays the same
+   * @param n the target number of elements
+   * @return the projected footprint
+   */
+  public MemoryFootprint project(long n) {
+    if (elements == 0) {
+      throw new IllegalStateException("Cannot project from an empty structure");
+    }
+    double f = (double) n / elements;
+    return new MemoryFootprint(structure, n, Math.round(nodes * f), Math.round(nodeBytes * f),
+                               Math.round(keyBytes * f), otherBytes);
+  }
+
+  public String toString() {
+    return String.format("%s: %d elements, %d nodes, %d bytes in nodes, %d bytes in keys, "
+                           + "%d other bytes, %.1f bytes/element",
+                         structure, elements, nodes, nodeBytes, keyBytes, otherBytes, bytesPerElement());
+  }
+
+  /**
+   * Main-method showing calls to and results from all methods above
+   */
+  public static void main(String[] args) {
+    System.out.println("Compressed oops: " + compressedOops() + ", header " + header()
+                         + " bytes, reference " + reference() + " bytes, alignment " + alignment());
+    Random rnd = new Random(42);
+    int n = 100_000;
+    int[] values = rnd.ints(n).toArray();
+    int[] sorted = values.clone();
+    Arrays.sort(sorted);
+    String[] keys = new String[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = Long.toString(rnd.nextLong() & Long.MAX_VALUE, 36);
+    }
+    BST t = new BST();
+    OffHeapBST o = new OffHeapBST(n);
+    for (String key : keys) {
+      t.add(key);
+      o.add(key);
+    }
+    MemoryFootprint[] footprints = {
+      t.memoryFootprint(),
+      o.memoryFootprint(),
+      SortedList.of(values).memoryFootprint(),
+      CompressedSortedList.of(sorted).memoryFootprint()
+    };
+    for (MemoryFootprint f : footprints) {
+      System.out.println(f);
+    }
+    for (MemoryFootprint f : footprints) {
+      System.out.printf("%s at 100 M elements: %.0f MB%n", f.structure(), f.project(100_000_000).totalBytes() / 1e6);
+    }
+  }
+}
@@ -0,0 +1,380 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Binary search tree with strings as keys, stored outside the Java heap.
+ * <p>
+ * The nodes are fixed-size records in direct buffers: the offset of the
+ * key followed by the numbers of the left and right child (-1 for none).
+ * The keys are stored in other direct buffers as a length followed by
+ * the UTF-16 characters, so keys compare exactly as with
+ * <code>String.compareTo</code>. The garbage collector sees a few buffer
+ * objects instead of one node and one string per key. The buffers are
+ * segments of at most 512 MB, so the tree holds up to 2^31 - 1 nodes,
+ * limited by the direct memory the JVM may allocate
+ * (<code>-XX:MaxDirectMemorySize</code>).
+ */
+public class OffHeapBST {
+  private static final int NODE_BYTES = 16;
+  private static final int KEY = 0;
+  private static final int LEFT = 8;
+  private static final int RIGHT = 12;
+  private static final int NONE = -1;
+  private static final int SEGMENT_SHIFT = 29;   // 512 MB per buffer
+
+  /**
+   * Storage addressed by long offsets, split into direct buffers of
+   * 2^SEGMENT_SHIFT bytes. Only the last buffer grows; the others are full.
+   */
+  private static final class Arena {
+    static final long SEGMENT_BYTES = 1L << SEGMENT_SHIFT;
+
+    ByteBuffer[] segments = new ByteBuffer[0];
+
+    ByteBuffer segment(long pos) {
+      return segments[(int) (pos >>> SEGMENT_SHIFT)];
+    }
+
+    static int offset(long pos) {
+      return (int) (pos & (SEGMENT_BYTES - 1));
+    }
+
+    int getInt(long pos) {
+      return segment(pos).getInt(offset(pos));
+    }
+
+    void putInt(long pos, int value) {
+      segment(pos).putInt(offset(pos), value);
+    }
+
+    long getLong(long pos) {
+      return segment(pos).getLong(offset(pos));
+    }
+
+    void putLong(long pos, long value) {
+      segment(pos).putLong(offset(pos), value);
+    }
+
+    long capacity() {
+      long capacity = 0;
+      for (ByteBuffer b : segments) {
+        capacity += b.capacity();
+      }
+      return capacity;
+    }
+
+    /**
+     * Make the bytes before end available, doubling the last buffer
+     */
+    void reserve(long end) {
+      int last = (int) ((end - 1) >>> SEGMENT_SHIFT);
+      if (last >= segments.length) {
+        segments = Arrays.copyOf(segments, last + 1);
+      }
+      for (int s = 0; s <= last; s++) {
+        long need = s < last ? SEGMENT_BYTES : end - ((long) s << SEGMENT_SHIFT);
+        ByteBuffer b = segments[s];
+        if (b == null) {
+          segments[s] = ByteBuffer.allocateDirect((int) Math.max(need, 16));
+        } else if (b.capacity() < need) {
+          segments[s] = grow(b, (int) Math.min(SEGMENT_BYTES, Math.max(need, 2L * b.capacity())));
+        }
+      }
+    }
+
+    private static ByteBuffer grow(ByteBuffer b, int capacity) {
+      ByteBuffer result = ByteBuffer.allocateDirect(capacity);
+      ByteBuffer old = b.duplicate();
+      old.clear();
+      result.put(old);
+      result.clear();
+      return result;
+    }
+
+    /**
+     * @return an arena holding a copy of the bytes before end
+     */
+    Arena copy(long end) {
+      Arena result = new Arena();
+      if (end > 0) {
+        result.reserve(end);
+        for (int s = 0; s < result.segments.length; s++) {
+          ByteBuffer old = segments[s].duplicate();
+          old.clear().limit(result.segments[s].capacity());
+          result.segments[s].put(old);
+          result.segments[s].clear();
+        }
+      }
+      return result;
+    }
+  }
+
+  private Arena nodes = new Arena();
+  private Arena keys = new Arena();
+  private int size;
+  private long keyBytes;
+  private int root = NONE;
+
+  /**
+   * Standard constructor
+   */
+  public OffHeapBST() {
+    this(1024);
+  }
+
+  /**
+   * @param capacity the expected number of keys
+   */
+  public OffHeapBST(int capacity) {
+    nodes.reserve((long) NODE_BYTES * Math.max(16, capacity));
+    keys.reserve(32L * Math.max(16, capacity));
+  }
+
+  private static long node(int n) {
+    return (long) n * NODE_BYTES;
+  }
+
+  private int left(int n) {
+    return nodes.getInt(node(n) + LEFT);
+  }
+
+  private int right(int n) {
+    return nodes.getInt(node(n) + RIGHT);
+  }
+
+  private String key(int n) {
+    long pos = nodes.getLong(node(n) + KEY);
+    ByteBuffer b = keys.segment(pos);
+    int off = Arena.offset(pos);
+    int len = b.getInt(off);
+    char[] chars = new char[len];
+    for (int i = 0; i < len; i++) {
+      chars[i] = b.getChar(off + 4 + 2 * i);
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Compare a key with the key of a node without creating a string
+   * @return a negative number, zero or a positive number as for compareTo
+   */
+  private int compare(String key, int n) {
+    long pos = nodes.getLong(node(n) + KEY);
+    ByteBuffer b = keys.segment(pos);
+    int off = Arena.offset(pos);
+    int len = b.getInt(off);
+    int common = Math.min(len, key.length());
+    for (int i = 0; i < common; i++) {
+      char c = b.getChar(off + 4 + 2 * i);
+      if (key.charAt(i) != c) {
+        return key.charAt(i) - c;
+      }
+    }
+    return key.length() - len;
+  }
+
+  /**
+   * Searches a specified key
+   * @param key the key to be searched
+   * @return true if the key is found, else false
+   */
+  public boolean contains(String key) {
+    int r = root;
+    while (r != NONE) {
+      int cmp = compare(key, r);
+      if (cmp < 0) {
+        r = left(r);
+      } else if (cmp > 0) {
+        r = right(r);
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Insert a key preserving the sorted condition
+   * @param key the key to be inserted
+   */
+  public void add(String key) {
+    if (root == NONE) {
+      root = newNode(key);
+      return;
+    }
+    int r = root;
+    while (true) {
+      int cmp = compare(key, r);
+      if (cmp == 0) {
+        return;  // the key is already in the tree
+      }
+      long link = node(r) + (cmp < 0 ? LEFT : RIGHT);
+      int child = nodes.getInt(link);
+      if (child == NONE) {
+        nodes.putInt(link, newNode(key));
+        return;
+      }
+      r = child;
+    }
+  }
+
+  /**
+   * Append a node without linking it into the tree
+   * @return the number of the new node
+   */
+  int newNode(String key) {
+    long need = 4 + 2L * key.length();
+    if (need > Arena.SEGMENT_BYTES) {
+      throw new BST.BSTException("Key too long for off-heap storage");
+    } else if (size == Integer.MAX_VALUE) {
+      throw new BST.BSTException("Off-heap storage is full");
+    }
+    if (Arena.offset(keyBytes) + need > Arena.SEGMENT_BYTES) {
+      // keys do not cross buffers; start the next one
+      keyBytes = ((keyBytes >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+    }
+    keys.reserve(keyBytes + need);
+    ByteBuffer b = keys.segment(keyBytes);
+    int off = Arena.offset(keyBytes);
+    b.putInt(off, key.length());
+    for (int i = 0; i < key.length(); i++) {
+      b.putChar(off + 4 + 2 * i, key.charAt(i));
+    }
+    int n = size++;
+    nodes.reserve(node(size));
+    nodes.putLong(node(n) + KEY, keyBytes);
+    nodes.putInt(node(n) + LEFT, NONE);
+    nodes.putInt(node(n) + RIGHT, NONE);
+    keyBytes += need;
+    return n;
+  }
+
+  /**
+   * Set the children of a node, used when converting a BST
+   */
+  void setChildren(int n, int left, int right) {
+    nodes.putInt(node(n) + LEFT, left);
+    nodes.putInt(node(n) + RIGHT, right);
+  }
+
+  void setRoot(int n) {
+    root = n;
+  }
+
+  /**
+   * Create a copy of the tree. The copy is made with one bulk copy of each
+   * buffer instead of one allocation per node, and the whole copy is
+   * released at once when it is no longer used.
+   * @return a tree with the same structure and keys
+   */
+  public OffHeapBST copy() {
+    OffHeapBST result = new OffHeapBST(0);
+    result.nodes = nodes.copy(node(size));
+    result.keys = keys.copy(keyBytes);
+    result.size = size;
+    result.keyBytes = keyBytes;
+    result.root = root;
+    return result;
+  }
+
+  /**
+   * Compute the number of nodes in the tree
+   * @return the number of nodes
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of bytes used in the off-heap buffers, including
+   * the unused ends of full key buffers
+   */
+  public long bytesUsed() {
+    return node(size) + keyBytes;
+  }
+
+  /**
+   * Estimate the memory used by the tree. Nodes and keys are in direct
+   * buffers outside the heap.
+   * @return the footprint; other memory is the unused buffer capacity and
+   * the heap objects of the tree, its arenas and their buffers
+   */
+  public MemoryFootprint memoryFootprint() {
+    long slack = nodes.capacity() + keys.capacity() - bytesUsed();
+    long heap = MemoryFootprint.object(2, 16);
+    for (Arena a : new Arena[] {nodes, keys}) {
+      heap += MemoryFootprint.object(1, 0) + MemoryFootprint.array(a.segments.length, MemoryFootprint.reference())
+        + a.segments.length * MemoryFootprint.object(4, 32);
+    }
+    return new MemoryFootprint("OffHeapBST", size, size, node(size), keyBytes, slack + heap);
+  }
+
+  /**
+   * Find the smallest (defined by compareTo()) key in the tree
+   * @return the smallest key
+   */
+  public String smallest() {
+    if (root == NONE) {
+      throw new BST.BSTException("Empty");
+    }
+    int r = root;
+    while (left(r) != NONE) {
+      r = left(r);
+    }
+    return key(r);
+  }
+
+  /**
+   * Construct an arraylist containing the keys from the nodes in symmetric order
+   * @return an arraylist containing all keys from the tree i alphabetic order
+   */
+  public ArrayList<String> toArrayList() {
+    ArrayList<String> result = new ArrayList<String>(size);
+    int[] stack = new int[64];
+    int top = 0;
+    int r = root;
+    while (r != NONE || top > 0) {
+      while (r != NONE) {
+        if (top == stack.length) {
+          stack = Arrays.copyOf(stack, 2 * top);
+        }
+        stack[top++] = r;
+        r = left(r);
+      }
+      r = stack[--top];
+      result.add(key(r));
+      r = right(r);
+    }
+    return result;
+  }
+
+  public String toString() {
+    StringBuilder result = new StringBuilder("<");
+    for (String key : toArrayList()) {
+      result.append(' ').append(key);
+    }
+    return result.append('>').toString();
+  }
+
+  /**
+   * Main-method showing calls to and results from all methods above
+   */
+  public static void main(String[] args) {
+    OffHeapBST t = new OffHeapBST();
+    t.add("C");
+    t.add("A");
+    t.add("KK");
+    t.add("T");
+    t.add("A");
+    System.out.println(t);
+    System.out.println("Size: " + t.size() + ", bytes: " + t.bytesUsed());
+    System.out.println("Smallest: " + t.smallest());
+    System.out.println("contains(KK): " + t.contains("KK"));
+    System.out.println("contains(K): " + t.contains("K"));
+    System.out.println("As arraylist: " + t.toArrayList());
+    OffHeapBST c = t.copy();
+    c.add("B");
+    System.out.println("Copy with B added: " + c + ", original: " + t);
+  }
+}
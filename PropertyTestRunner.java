@@ -0,0 +1,874 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntFunction;
+
+/**
+ * Randomized property tests of the data structures, checked against
+ * <code>TreeSet</code> and sorted-array oracles, and doubling tests of
+ * their growth rates. Needs nothing but the JDK.
+ * <p>
+ * Run with the names of the suites as arguments, or without arguments to
+ * run all of them, and <code>seed=N</code> to repeat a run. The
+ * correctness suites run in parallel; the growth suite runs afterwards
+ * on its own since it measures time. A failure names the suite, the seed
+ * and the case. The exit status is 1 if any suite fails.
+ */
+public class PropertyTestRunner {
+
+  /**
+   * A suite of checks
+   */
+  private interface Suite {
+    /**
+     * @param seed the seed of all random choices
+     * @return a summary of what was checked
+     * @throws AssertionError if a check fails
+     */
+    String run(long seed) throws Exception;
+  }
+
+  private static final Map<String, Suite> SUITES = new LinkedHashMap<String, Suite>();
+  private static final String GROWTH = "growth";
+
+  static {
+    SUITES.put("sortedlist", PropertyTestRunner::sortedList);
+    SUITES.put("setops", PropertyTestRunner::setOps);
+    SUITES.put("bst", PropertyTestRunner::bst);
+    SUITES.put("bst-large", PropertyTestRunner::bstLarge);
+    SUITES.put("concurrent", PropertyTestRunner::concurrent);
+    SUITES.put("external", PropertyTestRunner::external);
+    SUITES.put(GROWTH, PropertyTestRunner::growth);
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+
+  private static void checkThrows(Runnable action, String message) {
+    try {
+      action.run();
+    } catch (RuntimeException e) {
+      return;
+    }
+    throw new AssertionError(message + " did not throw");
+  }
+
+  private static int[] toArray(List<Integer> oracle) {
+    return oracle.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * @return the first index in a sorted list whose value is not smaller than x
+   */
+  private static int lowerBound(List<Integer> sorted, int x) {
+    int lo = 0;
+    int hi = sorted.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (sorted.get(mid) < x) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Random operation sequences on SortedList compared to a sorted
+   * ArrayList. The lists are kept short enough for the recursive methods.
+   */
+  private static String sortedList(long seed) {
+    Random rnd = new Random(seed);
+    int cases = 300;
+    long operations = 0;
+    for (int c = 0; c < cases; c++) {
+      String where = "case " + c + ", ";
+      int range = 1 + rnd.nextInt(rnd.nextBoolean() ? 20 : 5000);
+      int steps = rnd.nextInt(2000);
+      SortedList l = new SortedList();
+      if (c % 2 == 1) {
+        l.enableBloomFilter(0.05);
+      }
+      List<Integer> oracle = new ArrayList<Integer>();
+      for (int step = 0; step < steps; step++, operations++) {
+        int x = rnd.nextInt(range) - range / 4;
+        String at = where + "step " + step + ": ";
+        switch (rnd.nextInt(14)) {
+          case 0: case 1: case 2:
+            l.add(x);
+            oracle.add(lowerBound(oracle, x + 1), x);
+            break;
+          case 3:
+            int[] batch = rnd.ints(rnd.nextInt(50), -range / 4, range).toArray();
+            l.addAll(batch);
+            for (int v : batch) {
+              oracle.add(lowerBound(oracle, v + 1), v);
+            }
+            break;
+          case 4:
+            if (oracle.contains(x)) {
+              l.remove(x);
+              oracle.remove(lowerBound(oracle, x));
+            } else {
+              checkThrows(() -> l.remove(x), at + "remove(" + x + ") of a missing value");
+            }
+            break;
+          case 5:
+            if (oracle.isEmpty()) {
+              checkThrows(l::removeFirst, at + "removeFirst() on an empty list");
+              checkThrows(l::removeLast, at + "removeLast() on an empty list");
+            } else if (rnd.nextBoolean()) {
+              check(l.removeFirst() == oracle.remove(0), at + "removeFirst()");
+            } else {
+              check(l.removeLast() == oracle.remove(oracle.size() - 1), at + "removeLast()");
+            }
+            break;
+          case 6: case 7:
+            boolean expected = Collections.binarySearch(oracle, x) >= 0;
+            check(l.contains(x) == expected, at + "contains(" + x + ")");
+            check(l.containsIter(x) == expected, at + "containsIter(" + x + ")");
+            break;
+          case 8:
+            int i = rnd.nextInt(oracle.size() + 2) - 1;
+            if (i >= 0 && i < oracle.size()) {
+              check(l.atIndex(i) == oracle.get(i), at + "atIndex(" + i + ")");
+            } else {
+              checkThrows(() -> l.atIndex(i), at + "atIndex(" + i + ") out of range");
+            }
+            int first = lowerBound(oracle, x);
+            int index = first < oracle.size() && oracle.get(first) == x ? first : -1;
+            check(l.indexOf(x) == index, at + "indexOf(" + x + ")");
+            break;
+          case 9:
+            check(l.rank(x) == lowerBound(oracle, x), at + "rank(" + x + ")");
+            int hi = x + rnd.nextInt(range / 4 + 1);
+            check(l.countInRange(x, hi) == lowerBound(oracle, hi + 1) - lowerBound(oracle, x),
+                  at + "countInRange(" + x + ", " + hi + ")");
+            check(l.subList(x, hi).size() == lowerBound(oracle, hi + 1) - lowerBound(oracle, x),
+                  at + "subList(" + x + ", " + hi + ").size()");
+            break;
+          case 10:
+            int top = x + rnd.nextInt(range / 8 + 1);
+            int from = lowerBound(oracle, x);
+            int to = lowerBound(oracle, top + 1);
+            check(l.removeRange(x, top) == to - from, at + "removeRange(" + x + ", " + top + ")");
+            oracle.subList(from, to).clear();
+            break;
+          case 11:
+            int below = lowerBound(oracle, x);
+            check(l.removeBelow(x) == below, at + "removeBelow(" + x + ")");
+            oracle.subList(0, below).clear();
+            break;
+          case 12:
+            if (oracle.isEmpty()) {
+              checkThrows(l::getLast, at + "getLast() on an empty list");
+            } else {
+              check(l.getLast() == oracle.get(oracle.size() - 1), at + "getLast()");
+              check(l.getLastIter() == oracle.get(oracle.size() - 1), at + "getLastIter()");
+            }
+            break;
+          default:
+            if (rnd.nextInt(50) == 0) {
+              l.clear();
+              oracle.clear();
+            } else if (rnd.nextInt(20) == 0) {
+              l.useSlab();
+              check(l.isSlab(), at + "isSlab() after useSlab()");
+            }
+        }
+        check(l.size() == oracle.size(), at + "size() " + l.size() + ", expected " + oracle.size());
+      }
+      int[] expected = toArray(oracle);
+      check(Arrays.equals(l.toIntArray(), expected), where + "toIntArray()");
+      check(Arrays.equals(l.stream().toArray(), expected), where + "stream()");
+      check(l.equals(SortedList.of(expected)), where + "equals(of(toIntArray()))");
+      check(l.copy().equals(l), where + "copy().equals()");
+    }
+    return cases + " cases, " + operations + " operations";
+  }
+
+  /**
+   * Set operations on large lists compared to operations on sorted arrays
+   */
+  private static String setOps(long seed) {
+    Random rnd = new Random(seed);
+    int cases = 40;
+    for (int c = 0; c < cases; c++) {
+      String where = "case " + c + ": ";
+      int n = rnd.nextInt(c < cases / 2 ? 1000 : 200_000);
+      int range = 1 + rnd.nextInt(c % 3 == 0 ? 100 : 4 * n + 10);
+      int[] a = rnd.ints(n, 0, range).toArray();
+      int[] b = rnd.ints(rnd.nextInt(n + 1), 0, range).toArray();
+      Arrays.sort(a);
+      Arrays.sort(b);
+      SortedList la = SortedList.of(a);
+      SortedList lb = SortedList.of(b);
+      if (c % 4 >= 2) {
+        la.useSlab();
+      }
+      if (c % 4 == 3) {
+        lb.useSlab();
+      }
+      int[] merged = Arrays.copyOf(a, a.length + b.length);
+      System.arraycopy(b, 0, merged, a.length, b.length);
+      Arrays.sort(merged);
+      check(Arrays.equals(la.merge(lb).toIntArray(), merged), where + "merge");
+      TreeSet<Integer> sa = new TreeSet<Integer>();
+      TreeSet<Integer> sb = new TreeSet<Integer>();
+      Arrays.stream(a).forEach(sa::add);
+      Arrays.stream(b).forEach(sb::add);
+      TreeSet<Integer> both = new TreeSet<Integer>(sa);
+      both.retainAll(sb);
+      TreeSet<Integer> either = new TreeSet<Integer>(sa);
+      either.addAll(sb);
+      TreeSet<Integer> aOnly = new TreeSet<Integer>(sa);
+      aOnly.removeAll(sb);
+      TreeSet<Integer> exactlyOne = new TreeSet<Integer>(either);
+      exactlyOne.removeAll(both);
+      check(Arrays.equals(la.intersect(lb).toIntArray(), toArray(new ArrayList<Integer>(both))), where + "intersect");
+      check(la.intersectionSize(lb) == both.size(), where + "intersectionSize");
+      check(Arrays.equals(la.unionDistinct(lb).toIntArray(), toArray(new ArrayList<Integer>(either))),
+            where + "unionDistinct");
+      check(Arrays.equals(la.difference(lb).toIntArray(), toArray(new ArrayList<Integer>(aOnly))),
+            where + "difference");
+      check(Arrays.equals(la.symmetricDifference(lb).toIntArray(), toArray(new ArrayList<Integer>(exactlyOne))),
+            where + "symmetricDifference");
+      // CompressedSortedList must agree with the plain list
+      CompressedSortedList ca = CompressedSortedList.of(a);
+      CompressedSortedList cb = lb.compress();
+      check(Arrays.equals(ca.toArray(), a), where + "compressed toArray");
+      check(Arrays.equals(ca.merge(cb).toArray(), merged), where + "compressed merge");
+      check(Arrays.equals(la.mergeCompressed(lb).toArray(), merged), where + "mergeCompressed");
+      check(Arrays.equals(ca.intersect(cb).toArray(), toArray(new ArrayList<Integer>(both))),
+            where + "compressed intersect");
+      check(ca.intersectionSize(cb) == both.size(), where + "compressed intersectionSize");
+      for (int q = 0; q < 2000; q++) {
+        int x = rnd.nextInt(range + 2) - 1;
+        int rank = lowerBound(a, x);
+        check(ca.contains(x) == sa.contains(x), where + "compressed contains(" + x + ")");
+        check(ca.rank(x) == rank, where + "compressed rank(" + x + ")");
+        int hi = x + rnd.nextInt(range / 10 + 1);
+        check(ca.countInRange(x, hi) == lowerBound(a, hi + 1) - rank,
+              where + "compressed countInRange(" + x + ", " + hi + ")");
+        if (n > 0) {
+          int i = rnd.nextInt(n);
+          check(ca.atIndex(i) == a[i], where + "compressed atIndex(" + i + ")");
+        }
+      }
+      if (n > 0) {
+        check(ca.getLast() == a[n - 1], where + "compressed getLast");
+      }
+    }
+    return cases + " cases up to 200000 values";
+  }
+
+  private static int lowerBound(int[] sorted, int x) {
+    int lo = 0;
+    int hi = sorted.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (sorted[mid] < x) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * The tree variants tested by the BST suites
+   */
+  private static final Map<String, IntFunction<BST>> VARIANTS = new LinkedHashMap<String, IntFunction<BST>>();
+
+  static {
+    VARIANTS.put("PLAIN", n -> new BST());
+    VARIANTS.put("SPLAY", n -> new BST(BST.Policy.SPLAY));
+    VARIANTS.put("TREAP", n -> new BST(BST.Policy.TREAP));
+    VARIANTS.put("scapegoat", n -> {
+      BST t = new BST();
+      t.autoRebalance(2);
+      return t;
+    });
+    VARIANTS.put("slab", n -> {
+      BST t = new BST();
+      t.useSlab();
+      return t;
+    });
+    VARIANTS.put("cache+bloom", n -> {
+      BST t = new BST();
+      t.enableLookupCache(64);
+      t.enableBloomFilter(0.05);
+      return t;
+    });
+  }
+
+  private static String key(Random rnd, int range) {
+    return Integer.toString(rnd.nextInt(range), 36);
+  }
+
+  /**
+   * Random operation sequences on every BST variant compared to TreeSet
+   */
+  private static String bst(long seed) {
+    Random rnd = new Random(seed);
+    int cases = 0;
+    long operations = 0;
+    for (Map.Entry<String, IntFunction<BST>> variant : VARIANTS.entrySet()) {
+      for (int c = 0; c < 40; c++, cases++) {
+        String where = variant.getKey() + " case " + c + ", ";
+        int range = 1 + rnd.nextInt(rnd.nextBoolean() ? 50 : 20_000);
+        BST t = variant.getValue().apply(range);
+        BST replica = new BST();
+        t.enableChangeFeed(1 + rnd.nextInt(100));
+        long replicated = 0;
+        TreeSet<String> oracle = new TreeSet<String>();
+        int steps = rnd.nextInt(5000);
+        for (int step = 0; step < steps; step++, operations++) {
+          String at = where + "step " + step + ": ";
+          String key = key(rnd, range);
+          switch (rnd.nextInt(10)) {
+            case 0: case 1: case 2:
+              t.add(key);
+              oracle.add(key);
+              break;
+            case 3:
+              String[] batch = new String[rnd.nextInt(100)];
+              for (int i = 0; i < batch.length; i++) {
+                batch[i] = key(rnd, range);
+              }
+              t.addAll(batch);
+              oracle.addAll(Arrays.asList(batch));
+              break;
+            case 4: case 5:
+              check(t.contains(key) == oracle.contains(key), at + "contains(" + key + ")");
+              break;
+            case 6:
+              String[] keys = new String[rnd.nextInt(100)];
+              for (int i = 0; i < keys.length; i++) {
+                keys[i] = key(rnd, range);
+              }
+              boolean[] found = rnd.nextBoolean() ? t.containsAll(keys) : t.containsAllParallel(keys);
+              for (int i = 0; i < keys.length; i++) {
+                check(found[i] == oracle.contains(keys[i]), at + "containsAll, key " + keys[i]);
+              }
+              break;
+            case 7:
+              BST.Cursor cursor = t.cursor();
+              cursor.seek(key);
+              String ceiling = oracle.ceiling(key);
+              check(cursor.valid() == (ceiling != null), at + "seek(" + key + ").valid()");
+              for (int i = 0; i < 5 && ceiling != null; i++) {
+                check(cursor.key().equals(ceiling), at + "cursor at " + cursor.key() + ", expected " + ceiling);
+                String next = oracle.higher(ceiling);
+                check(cursor.next() == (next != null), at + "next() after " + ceiling);
+                ceiling = next;
+              }
+              if (cursor.last()) {
+                check(cursor.key().equals(oracle.last()), at + "last()");
+                String prev = oracle.lower(oracle.last());
+                check(cursor.prev() == (prev != null), at + "prev() from last");
+              }
+              break;
+            case 8:
+              BST.Changes changes = t.changesSince(replicated);
+              replicated = changes.applyTo(replica);
+              check(replica.sameContents(t), at + "replica after " + changes);
+              break;
+            default:
+              if (rnd.nextInt(20) == 0 && t.policy() != BST.Policy.TREAP) {
+                int height = t.height();
+                t.rebalance();
+                int n = oracle.size();
+                // height() counts the empty subtrees below the leaves
+                int optimal = 33 - Integer.numberOfLeadingZeros(n);
+                check(t.height() == optimal, at + "height " + t.height() + " after rebalance of " + n
+                        + " keys (was " + height + "), expected " + optimal);
+              } else if (rnd.nextInt(5) == 0 && variant.getKey().equals("slab")) {
+                int height = t.height();
+                t.useSlab();  // again, after the methods that leave slab mode
+                check(t.isSlab() && t.height() == height, at + "height " + t.height() + " in slab mode, was " + height);
+              }
+          }
+          check(t.size() == oracle.size(), at + "size() " + t.size() + ", expected " + oracle.size());
+        }
+        check(t.toArrayList().equals(new ArrayList<String>(oracle)), where + "toArrayList()");
+        if (!oracle.isEmpty()) {
+          check(t.smallest().equals(oracle.first()), where + "smallest()");
+        }
+        check(t.copy().equals(t), where + "copy().equals()");
+        BST other = new BST();
+        TreeSet<String> otherOracle = new TreeSet<String>();
+        for (int i = rnd.nextInt(2000); i > 0; i--) {
+          String key = key(rnd, range);
+          other.add(key);
+          otherOracle.add(key);
+        }
+        TreeSet<String> union = new TreeSet<String>(oracle);
+        union.addAll(otherOracle);
+        TreeSet<String> intersection = new TreeSet<String>(oracle);
+        intersection.retainAll(otherOracle);
+        TreeSet<String> difference = new TreeSet<String>(oracle);
+        difference.removeAll(otherOracle);
+        check(t.union(other).toArrayList().equals(new ArrayList<String>(union)), where + "union");
+        check(t.intersection(other).toArrayList().equals(new ArrayList<String>(intersection)),
+              where + "intersection");
+        check(t.difference(other).toArrayList().equals(new ArrayList<String>(difference)), where + "difference");
+      }
+    }
+    // The cache size is rounded up, never down
+    int[][] capacities = {{1, 4}, {4, 4}, {16, 16}, {17, 32}, {100, 128}, {1 << 20, 1 << 20}};
+    for (int[] capacity : capacities) {
+      BST cached = new BST();
+      cached.enableLookupCache(capacity[0]);
+      check(cached.lookupCache().capacity() == capacity[1], "enableLookupCache(" + capacity[0] + "): capacity "
+              + cached.lookupCache().capacity() + ", expected " + capacity[1]);
+    }
+    // A snapshot replaces the contents of a replica, so it must also
+    // drop the keys in the replica's lookup cache
+    BST source = new BST();
+    source.enableChangeFeed(1);
+    BST replica = new BST();
+    replica.enableLookupCache(64);
+    for (int i = 0; i < 100; i++) {
+      replica.add("old" + i);
+      check(replica.contains("old" + i), "replica contains(old" + i + ") before the snapshot");
+    }
+    for (int i = 0; i < 100; i++) {
+      source.add("new" + i);
+    }
+    BST.Changes changes = source.changesSince(0);
+    check(changes.isSnapshot(), "changesSince(0) with a one-version feed is a snapshot");
+    changes.applyTo(replica);
+    for (int i = 0; i < 100; i++) {
+      check(!replica.contains("old" + i), "cached replica contains(old" + i + ") after a snapshot");
+      check(replica.contains("new" + i), "cached replica contains(new" + i + ") after a snapshot");
+    }
+    return cases + " cases over " + VARIANTS.size() + " variants, " + operations + " operations";
+  }
+
+  /**
+   * Large trees, including sorted input, compared to TreeSet
+   */
+  private static String bstLarge(long seed) {
+    Random rnd = new Random(seed);
+    int n = 300_000;
+    String[] random = new String[n];
+    for (int i = 0; i < n; i++) {
+      random[i] = Long.toString(rnd.nextLong() & Long.MAX_VALUE, 36);
+    }
+    String[] sorted = random.clone();
+    Arrays.sort(sorted);
+    TreeSet<String> oracle = new TreeSet<String>(Arrays.asList(random));
+    List<String> expected = new ArrayList<String>(oracle);
+    int log = 33 - Integer.numberOfLeadingZeros(oracle.size());
+
+    BST plain = new BST();
+    for (String key : random) {
+      plain.add(key);
+    }
+    check(plain.toArrayList().equals(expected), "PLAIN with random input: toArrayList()");
+    check(plain.height() < 3 * log, "PLAIN with random input: height " + plain.height());
+
+    BST batch = new BST();
+    batch.addAll(sorted);
+    check(batch.toArrayList().equals(expected), "addAll of sorted keys: toArrayList()");
+    check(batch.height() == log, "addAll of sorted keys: height " + batch.height() + ", expected " + log);
+
+    BST scapegoat = new BST();
+    scapegoat.autoRebalance(2);
+    for (String key : sorted) {
+      scapegoat.add(key);
+    }
+    check(scapegoat.toArrayList().equals(expected), "scapegoat with sorted input: toArrayList()");
+    check(scapegoat.height() <= 2 * log + 1, "scapegoat with sorted input: height " + scapegoat.height());
+
+    // addAll, and so a change feed, must keep the height limit too
+    int m = 30_000;
+    int mlog = 33 - Integer.numberOfLeadingZeros(m);
+    BST batches = new BST();
+    batches.autoRebalance(2);
+    BST source = new BST();
+    source.autoRebalance(2);
+    source.enableChangeFeed(64);
+    BST replica = new BST();
+    replica.autoRebalance(2);
+    long replicated = 0;
+    for (int lo = 0; lo < m; lo += 3) {
+      batches.addAll(Arrays.copyOfRange(sorted, lo, lo + 3));
+      source.addAll(Arrays.copyOfRange(sorted, lo, lo + 3));
+      if (lo % 48 == 0) {
+        replicated = source.changesSince(replicated).applyTo(replica);
+      }
+    }
+    replicated = source.changesSince(replicated).applyTo(replica);
+    check(batches.toArrayList().equals(expected.subList(0, m)), "scapegoat with sorted batches: toArrayList()");
+    check(batches.height() <= 2 * mlog + 1, "scapegoat with sorted batches: height " + batches.height());
+    check(replica.sameContents(source), "scapegoat replica: contents");
+    check(replica.height() <= 2 * mlog + 1, "scapegoat replica of sorted input: height " + replica.height());
+
+    BST splay = new BST(BST.Policy.SPLAY);
+    for (String key : sorted) {
+      splay.add(key);
+    }
+    for (int i = 0; i < 10_000; i++) {
+      String key = random[rnd.nextInt(n)];
+      check(splay.contains(key), "SPLAY with sorted input: contains(" + key + ")");
+    }
+    check(splay.size() == oracle.size(), "SPLAY with sorted input: size()");
+
+    // SPLAY trees built in order are vines; containsAll must not recurse along them
+    String[] vineKeys = sortedKeys(200_000);
+    for (boolean descending : new boolean[] {true, false}) {
+      String vine = descending ? "right vine" : "left vine";
+      BST t = new BST(BST.Policy.SPLAY);
+      for (int i = 0; i < vineKeys.length; i++) {
+        t.add(vineKeys[descending ? vineKeys.length - 1 - i : i]);
+      }
+      String[] queries = new String[20_000];
+      for (int i = 0; i < queries.length; i++) {
+        queries[i] = rnd.nextBoolean() ? vineKeys[rnd.nextInt(vineKeys.length)] : key(rnd, 1_000_000);
+      }
+      boolean[] found = t.containsAll(queries);
+      for (int i = 0; i < queries.length; i++) {
+        check(found[i] == (Arrays.binarySearch(vineKeys, queries[i]) >= 0),
+              "containsAll on a " + vine + ", key " + queries[i]);
+      }
+      int optimal = 33 - Integer.numberOfLeadingZeros(vineKeys.length);
+      check(t.rebalanceIfSkewed(2), "rebalanceIfSkewed(2) on a " + vine);
+      check(t.height() == optimal, "height " + t.height() + " after rebalanceIfSkewed on a " + vine);
+      check(!t.rebalanceIfSkewed(2), "rebalanceIfSkewed(2) on a balanced tree");
+    }
+
+    ShardedBST sharded = ShardedBST.fromSample(Arrays.copyOf(random, 1000), 8);
+    sharded.addAll(random);
+    check(sharded.toArrayList().equals(expected), "ShardedBST: toArrayList()");
+    String lo = random[0];
+    String hi = random[1].compareTo(lo) > 0 ? random[1] : null;
+    check(sharded.range(lo, hi).equals(new ArrayList<String>(hi == null ? oracle.tailSet(lo) : oracle.subSet(lo, hi))),
+          "ShardedBST: range(" + lo + ", " + hi + ")");
+    check(!sharded.rebalanceIfUneven(2, 8) || sharded.toArrayList().equals(expected),
+          "ShardedBST: contents after rebalanceIfUneven");
+    return "5 trees of " + n + " keys, 2 vines of " + vineKeys.length + " keys";
+  }
+
+  /**
+   * Concurrent updates of the thread-safe structures from several threads
+   */
+  private static String concurrent(long seed) throws Exception {
+    int threads = 4;
+    int perThread = 20_000;
+    int listUpdates = 4000;   // ConcurrentSortedList searches linearly
+    ConcurrentSortedList list = new ConcurrentSortedList();
+    ShardedBST sharded = new ShardedBST("4", "8", "c", "g");
+    List<Integer> kept = Collections.synchronizedList(new ArrayList<Integer>());
+    TreeSet<String> keys = new TreeSet<String>();
+    List<String[]> perThreadKeys = new ArrayList<String[]>();
+    Random rnd = new Random(seed);
+    for (int t = 0; t < threads; t++) {
+      String[] k = new String[perThread];
+      for (int i = 0; i < perThread; i++) {
+        k[i] = key(rnd, 1_000_000);
+      }
+      perThreadKeys.add(k);
+      keys.addAll(Arrays.asList(k));
+    }
+    AtomicBoolean adding = new AtomicBoolean(true);
+    int rebalances = 0;
+    try (BufferedBST buffered = new BufferedBST(1000)) {
+      ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+      try {
+        // Redistribute the shards over and over while the keys are added
+        Future<Integer> rebalancer = pool.submit(() -> {
+          int n = 0;
+          for (int shards = 2; adding.get(); shards = shards % 8 + 2) {
+            if (sharded.rebalanceIfUneven(1, shards)) {
+              n++;
+            }
+            Thread.yield();
+          }
+          return n;
+        });
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+          int id = t;
+          futures.add(pool.submit(() -> {
+            Random r = new Random(seed + id);
+            for (int i = 0; i < listUpdates; i++) {
+              int x = r.nextInt(10_000);
+              list.add(x);
+              if (r.nextBoolean()) {
+                check(list.remove(x), "ConcurrentSortedList: remove(" + x + ") right after add");
+              } else {
+                kept.add(x);
+              }
+            }
+            for (String key : perThreadKeys.get(id)) {
+              sharded.add(key);
+              check(sharded.contains(key), "ShardedBST: contains(" + key + ") right after add");
+              buffered.add(key);
+            }
+            return null;
+          }));
+        }
+        try {
+          for (Future<?> f : futures) {
+            f.get();
+          }
+        } finally {
+          adding.set(false);
+        }
+        rebalances = rebalancer.get();
+      } finally {
+        pool.shutdown();
+      }
+      int[] expected = toArray(kept);
+      Arrays.sort(expected);
+      check(Arrays.equals(list.toIntArray(), expected), "ConcurrentSortedList: contents after concurrent updates");
+      check(list.size() == expected.length, "ConcurrentSortedList: size()");
+      List<String> expectedKeys = new ArrayList<String>(keys);
+      check(sharded.toArrayList().equals(expectedKeys), "ShardedBST: contents after concurrent adds");
+      check(buffered.toArrayList().equals(expectedKeys), "BufferedBST: contents after concurrent adds");
+      checkThrows(() -> buffered.add(null), "BufferedBST: add(null)");
+    }
+    BufferedBST closed = new BufferedBST(10);
+    closed.add("before close");
+    closed.close();
+    checkThrows(() -> closed.add("after close"), "BufferedBST: add after close()");
+    check(closed.toArrayList().equals(Arrays.asList("before close")), "BufferedBST: contents after close()");
+    return threads + " threads, " + threads * listUpdates + " list updates, "
+             + threads * perThread + " tree updates, " + rebalances + " shard redistributions";
+  }
+
+  /**
+   * ExternalSortedList with small runs compared to sorted arrays
+   */
+  private static String external(long seed) throws Exception {
+    Random rnd = new Random(seed);
+    Path dir = Files.createTempDirectory("external");
+    int cases = 60;
+    try {
+      for (int c = 0; c < cases; c++) {
+        String where = "case " + c + ": ";
+        int n = rnd.nextInt(c < cases - 2 ? 5000 : 500_000);
+        int range = 1 + rnd.nextInt(c % 2 == 0 ? 100 : Integer.MAX_VALUE);
+        int[] values = rnd.ints(n, 0, range).toArray();
+        int[] more = rnd.ints(rnd.nextInt(1000), 0, range).toArray();
+        try (ExternalSortedList l = new ExternalSortedList(1 + rnd.nextInt(Math.max(1, n / 10 + 1)), dir);
+             ExternalSortedList m = new ExternalSortedList(64, dir)) {
+          l.addAll(values);
+          m.addAll(more);
+          int[] sorted = values.clone();
+          Arrays.sort(sorted);
+          check(l.size() == n, where + "size()");
+          check(Arrays.equals(l.toIntArray(), sorted), where + "toIntArray()");
+          for (int q = 0; q < 1000; q++) {
+            int x = rnd.nextInt(range + 1);
+            check(l.contains(x) == Arrays.binarySearch(sorted, x) >= 0, where + "contains(" + x + ")");
+          }
+          int[] merged = Arrays.copyOf(sorted, n + more.length);
+          System.arraycopy(more, 0, merged, n, more.length);
+          Arrays.sort(merged);
+          try (ExternalSortedList lm = l.merge(m)) {
+            check(Arrays.equals(lm.toIntArray(), merged), where + "merge()");
+          }
+        }
+      }
+      try (var left = Files.list(dir)) {
+        check(left.count() == 0, "files left after close()");
+      }
+    } finally {
+      Files.delete(dir);
+    }
+    return cases + " cases up to 500000 values";
+  }
+
+  /**
+   * Time per operation at doubling sizes. An O(log n) operation grows by
+   * a factor close to 1 per doubling and an O(n) operation by 2, so the
+   * average growth per doubling must stay below 1.5. Sorted input is
+   * given through addAll or a scapegoat tree: a PLAIN tree built by adding
+   * sorted keys one by one is a vine, whose linear contains is expected.
+   */
+  private static String growth(long seed) {
+    StringBuilder summary = new StringBuilder();
+    Random rnd = new Random(seed);
+    summary.append(doubling("BST.contains, scapegoat tree from sorted input", 1 << 13, 5, n -> {
+      BST t = new BST();
+      t.autoRebalance(2);
+      String[] keys = sortedKeys(n);
+      for (String key : keys) {
+        t.add(key);
+      }
+      return () -> {
+        for (int i = 0; i < 100_000; i++) {
+          t.contains(keys[rnd.nextInt(n)]);
+        }
+        return 100_000;
+      };
+    }));
+    summary.append(doubling("BST.contains, PLAIN tree from a sorted batch", 1 << 13, 5, n -> {
+      BST t = new BST();
+      String[] keys = sortedKeys(n);
+      t.addAll(keys);
+      return () -> {
+        for (int i = 0; i < 100_000; i++) {
+          t.contains(keys[rnd.nextInt(n)]);
+        }
+        return 100_000;
+      };
+    }));
+    summary.append(doubling("BST.addAll of a sorted batch, per key", 1 << 13, 5, n -> {
+      String[] keys = sortedKeys(n);
+      return () -> {
+        new BST().addAll(keys);
+        return n;
+      };
+    }));
+    summary.append(doubling("SortedList.addAll of n values to n values, per value", 1 << 14, 5, n -> {
+      int[] values = rnd.ints(n).toArray();
+      return () -> {
+        SortedList l = SortedList.of(values);
+        l.addAll(values);
+        return n;
+      };
+    }));
+    summary.append(doubling("CompressedSortedList.contains", 1 << 14, 5, n -> {
+      int[] values = rnd.ints(n).toArray();
+      Arrays.sort(values);
+      CompressedSortedList c = CompressedSortedList.of(values);
+      return () -> {
+        for (int i = 0; i < 100_000; i++) {
+          c.contains(values[rnd.nextInt(n)]);
+        }
+        return 100_000;
+      };
+    }));
+    return summary.toString();
+  }
+
+  private static String[] sortedKeys(int n) {
+    String[] keys = new String[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = String.format("%08d", i);
+    }
+    return keys;
+  }
+
+  /**
+   * A timed piece of work
+   */
+  private interface Work {
+    /**
+     * @return the number of operations done
+     */
+    int run();
+  }
+
+  private static String doubling(String name, int smallest, int sizes, IntFunction<Work> setup) {
+    // Warm up on a throwaway instance, so that the smallest size is not
+    // timed in the interpreter, which would hide a linear growth
+    Work warmUp = setup.apply(smallest);
+    long warmUpEnd = System.nanoTime() + 500_000_000L;
+    for (int rep = 0; rep < 10 || System.nanoTime() < warmUpEnd; rep++) {
+      warmUp.run();
+    }
+    double[] perOp = new double[sizes];
+    for (int s = 0; s < sizes; s++) {
+      Work work = setup.apply(smallest << s);
+      double[] times = new double[7];
+      for (int rep = 0; rep < times.length; rep++) {
+        long start = System.nanoTime();
+        int ops = work.run();
+        times[rep] = (double) (System.nanoTime() - start) / ops;
+      }
+      Arrays.sort(times);
+      perOp[s] = times[times.length / 2];
+    }
+    double growth = Math.pow(perOp[sizes - 1] / perOp[0], 1.0 / (sizes - 1));
+    String result = String.format("%n  %s: %.0f -> %.0f ns/op from n=%d to n=%d, growth %.2f per doubling",
+                                  name, perOp[0], perOp[sizes - 1], smallest, smallest << (sizes - 1), growth);
+    check(growth < 1.5, result.trim());
+    return result;
+  }
+
+  public static void main(String[] args) throws Exception {
+    long seed = System.nanoTime();
+    List<String> names = new ArrayList<String>();
+    for (String arg : args) {
+      if (arg.startsWith("seed=")) {
+        seed = Long.parseLong(arg.substring(5));
+      } else if (SUITES.containsKey(arg)) {
+        names.add(arg);
+      } else {
+        System.out.println("Unknown suite: " + arg + ", available: " + SUITES.keySet());
+        System.exit(2);
+      }
+    }
+    if (names.isEmpty()) {
+      names.addAll(SUITES.keySet());
+    }
+    System.out.println("Seed " + seed);
+    long runSeed = seed;
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    Map<String, Future<String>> running = new LinkedHashMap<String, Future<String>>();
+    for (String name : names) {
+      if (!name.equals(GROWTH)) {
+        running.put(name, pool.submit(() -> timed(name, runSeed)));
+      }
+    }
+    int failures = 0;
+    for (Iterator<Map.Entry<String, Future<String>>> it = running.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<String, Future<String>> suite = it.next();
+      String result = suite.getValue().get();
+      System.out.println(result);
+      if (result.startsWith("FAIL")) {
+        failures++;
+      }
+    }
+    pool.shutdown();
+    if (names.contains(GROWTH)) {
+      String result = timed(GROWTH, seed);
+      System.out.println(result);
+      if (result.startsWith("FAIL")) {
+        failures++;
+      }
+    }
+    if (failures > 0) {
+      System.out.println(failures + " of " + names.size() + " suites failed, rerun with seed=" + seed);
+      System.exit(1);
+    }
+    System.out.println("All " + names.size() + " suites passed");
+  }
+
+  private static String timed(String name, long seed) {
+    long start = System.nanoTime();
+    String summary;
+    boolean passed;
+    try {
+      summary = SUITES.get(name).run(seed);
+      passed = true;
+    } catch (Throwable e) {
+      summary = e instanceof AssertionError ? e.getMessage() : e.toString();
+      passed = false;
+    }
+    return String.format("%s %-10s (%.1f s) %s", passed ? "PASS" : "FAIL", name,
+                         (System.nanoTime() - start) / 1e9, summary);
+  }
+}
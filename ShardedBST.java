@@ -0,0 +1,361 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Thread-safe set of strings split by key range over several binary
+ * search trees.
+ * <p>
+ * Shard i holds the keys k with splits[i-1] &lt;= k &lt; splits[i]. Every
+ * shard is a PLAIN <code>BST</code> with its own read-write lock, so
+ * threads working in different ranges never contend, and lookups in the
+ * same shard run concurrently. The split points, shards and locks form an
+ * immutable table published through a volatile field, so an operation
+ * only reads shared state until it takes the lock of its shard. When
+ * <code>rebalanceIfUneven</code> resizes the shards it holds all shard
+ * locks while it publishes a new table; an operation that gets a lock of
+ * a replaced table sees that the table changed and starts over. Scans
+ * that cover several shards read them in parallel and concatenate the
+ * results in key order.
+ */
+public class ShardedBST {
+  /**
+   * The split points with their shards and locks. Never modified.
+   */
+  private static final class Table {
+    final String[] splits;
+    final BST[] shards;
+    final ReentrantReadWriteLock[] locks;
+
+    Table(String[] splits, BST[] shards) {
+      this.splits = splits;
+      this.shards = shards;
+      this.locks = new ReentrantReadWriteLock[shards.length];
+      for (int i = 0; i < shards.length; i++) {
+        if (shards[i] == null) {
+          shards[i] = new BST();
+        }
+        locks[i] = new ReentrantReadWriteLock();
+      }
+    }
+
+    /**
+     * @return the number of the shard holding a key
+     */
+    int shard(String key) {
+      int i = Arrays.binarySearch(splits, key);
+      return i >= 0 ? i + 1 : -i - 1;
+    }
+  }
+
+  private volatile Table table;
+
+  /**
+   * Create an empty set with given split points
+   * @param splits the smallest key of every shard except the first, in
+   * strictly increasing order
+   */
+  public ShardedBST(String... splits) {
+    for (int i = 1; i < splits.length; i++) {
+      if (splits[i - 1].compareTo(splits[i]) >= 0) {
+        throw new BST.BSTException("The split points must be strictly increasing");
+      }
+    }
+    table = new Table(splits.clone(), new BST[splits.length + 1]);
+  }
+
+  /**
+   * Create an empty set whose split points divide a sample of the
+   * expected keys into equal parts
+   * @param sample keys with the same distribution as the keys to come
+   * @param n the wanted number of shards
+   * @return a set with at most n shards
+   */
+  public static ShardedBST fromSample(String[] sample, int n) {
+    String[] sorted = sample.clone();
+    Arrays.sort(sorted);
+    return new ShardedBST(quantiles(sorted, sorted.length, n));
+  }
+
+  /**
+   * Distinct keys dividing keys[0..n) into at most parts equal parts
+   */
+  private static String[] quantiles(String[] keys, int n, int parts) {
+    ArrayList<String> result = new ArrayList<String>();
+    for (int i = 1; i < parts && n > 0; i++) {
+      String key = keys[(int) ((long) n * i / parts)];
+      if ((result.isEmpty() || key.compareTo(result.get(result.size() - 1)) > 0)
+            && key.compareTo(keys[0]) > 0) {
+        result.add(key);
+      }
+    }
+    return result.toArray(new String[0]);
+  }
+
+  /**
+   * Lock a shard of a table
+   * @return true if the table is still current, else the lock is released
+   */
+  private boolean lock(Table t, int i, boolean write) {
+    Lock lock = write ? t.locks[i].writeLock() : t.locks[i].readLock();
+    lock.lock();
+    if (table == t) {
+      return true;
+    }
+    lock.unlock();
+    return false;
+  }
+
+  /**
+   * Insert a key
+   * @param key the key to be inserted
+   */
+  public void add(String key) {
+    while (true) {
+      Table t = table;
+      int i = t.shard(key);
+      if (lock(t, i, true)) {
+        try {
+          t.shards[i].add(key);
+          return;
+        } finally {
+          t.locks[i].writeLock().unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Insert many keys, taking the lock of each shard once
+   * @param keys the keys to be inserted, in any order
+   */
+  public void addAll(String[] keys) {
+    String[] sorted = keys.clone();
+    Arrays.sort(sorted);
+    int lo = 0;
+    while (lo < sorted.length) {
+      Table t = table;
+      int i = t.shard(sorted[lo]);
+      int hi = i < t.splits.length ? lowerBound(sorted, lo, t.splits[i]) : sorted.length;
+      if (lock(t, i, true)) {
+        try {
+          t.shards[i].addAll(Arrays.copyOfRange(sorted, lo, hi));
+        } finally {
+          t.locks[i].writeLock().unlock();
+        }
+        lo = hi;
+      }
+    }
+  }
+
+  /**
+   * @return the first index from lo whose key is not smaller than key
+   */
+  private static int lowerBound(String[] keys, int lo, String key) {
+    int hi = keys.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (keys[mid].compareTo(key) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Searches a specified key
+   * @param key the key to be searched
+   * @return true if the key is found, else false
+   */
+  public boolean contains(String key) {
+    while (true) {
+      Table t = table;
+      int i = t.shard(key);
+      if (lock(t, i, false)) {
+        try {
+          return t.shards[i].contains(key);
+        } finally {
+          t.locks[i].readLock().unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of keys. Every shard is counted under its lock,
+   * but updates of other shards may happen in between.
+   */
+  public int size() {
+    int n = 0;
+    for (int size : shardSizes()) {
+      n += size;
+    }
+    return n;
+  }
+
+  /**
+   * @return the number of keys in every shard
+   */
+  public int[] shardSizes() {
+    retry:
+    while (true) {
+      Table t = table;
+      int[] result = new int[t.shards.length];
+      for (int i = 0; i < t.shards.length; i++) {
+        if (!lock(t, i, false)) {
+          continue retry;
+        }
+        try {
+          result[i] = t.shards[i].size();
+        } finally {
+          t.locks[i].readLock().unlock();
+        }
+      }
+      return result;
+    }
+  }
+
+  public int shardCount() {
+    return table.shards.length;
+  }
+
+  /**
+   * Find the keys in a range. The shards overlapping the range are
+   * scanned in parallel, each under its read lock.
+   * @param lo the smallest key of the range
+   * @param hi the key after the range, or null for no upper limit
+   * @return the keys k with lo &lt;= k &lt; hi in ascending order
+   */
+  public ArrayList<String> range(String lo, String hi) {
+    while (true) {
+      Table t = table;
+      int first = t.shard(lo);
+      int last = hi == null ? t.shards.length - 1 : t.shard(hi);
+      List<List<String>> parts = IntStream.rangeClosed(first, last).parallel()
+        .mapToObj(i -> scan(t, i, lo, hi))
+        .collect(Collectors.toList());
+      if (parts.contains(null)) {
+        continue;  // the shards were redistributed during the scan
+      }
+      ArrayList<String> result = new ArrayList<String>();
+      for (List<String> part : parts) {
+        result.addAll(part);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * @return the keys of the range in shard i, or null if the table was replaced
+   */
+  private List<String> scan(Table t, int i, String lo, String hi) {
+    if (!lock(t, i, false)) {
+      return null;
+    }
+    ArrayList<String> result = new ArrayList<String>();
+    try {
+      BST.Cursor cursor = t.shards[i].cursor();
+      cursor.seek(lo);
+      for (boolean more = cursor.valid(); more; more = cursor.next()) {
+        if (hi != null && cursor.key().compareTo(hi) >= 0) {
+          break;
+        }
+        result.add(cursor.key());
+      }
+    } finally {
+      t.locks[i].readLock().unlock();
+    }
+    return result;
+  }
+
+  /**
+   * Construct an arraylist containing all keys in alphabetic order
+   * @return an arraylist containing all keys
+   */
+  public ArrayList<String> toArrayList() {
+    return range("", null);
+  }
+
+  /**
+   * Move the split points so that the shards get equally many keys, if
+   * the largest shard holds more than maxRatio times the average size of
+   * n shards. All shards are locked while the keys are redistributed.
+   * @param maxRatio the largest accepted ratio between the largest shard
+   * and the average, e.g. 2
+   * @param n the wanted number of shards after a redistribution
+   * @return true if the shards were redistributed
+   */
+  public synchronized boolean rebalanceIfUneven(double maxRatio, int n) {
+    Table t = table;  // only replaced here, under the monitor
+    for (ReentrantReadWriteLock lock : t.locks) {
+      lock.writeLock().lock();
+    }
+    try {
+      int total = 0;
+      int largest = 0;
+      for (BST shard : t.shards) {
+        total += shard.size();
+        largest = Math.max(largest, shard.size());
+      }
+      if (total == 0 || largest <= maxRatio * total / n) {
+        return false;
+      }
+      String[] keys = new String[total];
+      int k = 0;
+      for (BST shard : t.shards) {
+        for (String key : shard.toArrayList()) {
+          keys[k++] = key;
+        }
+      }
+      String[] newSplits = quantiles(keys, total, n);
+      BST[] newShards = new BST[newSplits.length + 1];
+      int lo = 0;
+      for (int i = 0; i < newShards.length; i++) {
+        int hi = i < newSplits.length ? lowerBound(keys, lo, newSplits[i]) : total;
+        newShards[i] = new BST();
+        newShards[i].addAll(Arrays.copyOfRange(keys, lo, hi));  // builds a balanced tree
+        lo = hi;
+      }
+      table = new Table(newSplits, newShards);
+      return true;
+    } finally {
+      for (ReentrantReadWriteLock lock : t.locks) {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  public String toString() {
+    StringBuilder result = new StringBuilder("<");
+    for (String key : toArrayList()) {
+      result.append(' ').append(key);
+    }
+    return result.append('>').toString();
+  }
+
+  /**
+   * Main-method showing calls to and results from all methods above
+   */
+  public static void main(String[] args) {
+    ShardedBST t = new ShardedBST("G", "P");
+    for (String key : new String[] {"C", "A", "KK", "T", "A", "Z", "H"}) {
+      t.add(key);
+    }
+    System.out.println(t + ", shard sizes " + Arrays.toString(t.shardSizes()));
+    System.out.println("contains(KK): " + t.contains("KK") + ", contains(K): " + t.contains("K"));
+    System.out.println("range(B, T): " + t.range("B", "T"));
+    t.addAll(new String[] {"B", "D", "E", "F", "AA", "AB"});
+    System.out.println("After addAll, shard sizes " + Arrays.toString(t.shardSizes()));
+    System.out.println("rebalanceIfUneven(1.5, 3): " + t.rebalanceIfUneven(1.5, 3)
+                         + ", shard sizes " + Arrays.toString(t.shardSizes()) + ", " + t);
+    ShardedBST s = fromSample(new String[] {"b", "d", "f", "h", "j", "l", "n", "p"}, 4);
+    s.add("m");
+    System.out.println("From sample: " + s.shardCount() + " shards, size " + s.size());
+  }
+}
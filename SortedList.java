@@ -1,4 +1,12 @@
-
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 public class SortedList {
   /*
@@ -25,14 +33,27 @@ public class SortedList {
   }
   
   private Node first;
+  private int[] slab;   // the data items in slab mode, when first is null
+  private int count;
+  private BloomFilter bloom;
+  private int stale;   // removals since the Bloom filter was built
+  private WorkloadTrace.Recorder recorder;
   
   public SortedList() {
     first = null;
+    count = 0;
   }
   /*
    * metoden går igenom alla noder och lägga till datainnehållet
    */
   public String toString() {
+    if (slab != null) {
+      StringBuilder result = new StringBuilder("(");
+      for (int i = 0; i < count; i++) {
+        result.append(' ').append(slab[i]);
+      }
+      return result.append(')').toString();
+    }
     String result = "";
     Node t = first;
     while (t != null) {
@@ -42,24 +63,51 @@ public class SortedList {
     return "(" + result + ")";
   }
   /*
-   * returnerar storleken av noden
+   * returnerar storleken av listan, som hålls uppdaterad av alla metoder
+   * som ändrar listan
    */
   public int size() {
-    return size(first);
+    return count;
   }
-  
-  private static int size(Node n) {
-    if (n == null) {
-      return 0;
-    } else {
-      return 1 + size(n.next);
+
+  /**
+   * Estimate the memory used by the list from maintained counters
+   * @return the footprint; the values are stored in the nodes, other
+   * memory is the list object and the Bloom filter
+   */
+  public MemoryFootprint memoryFootprint() {
+    long other = MemoryFootprint.object(3, 4 + 4);
+    if (bloom != null) {
+      other += bloom.memoryFootprint();
     }
+    if (slab != null) {
+      return new MemoryFootprint("SortedList (slab)", count, 0, MemoryFootprint.array(slab.length, 4), 0, other);
+    }
+    // data and next
+    return new MemoryFootprint("SortedList", count, count, count * MemoryFootprint.object(1, 4), 0, other);
   }
   /*
    * lägger till element till listan
    */
   public void add(int x) {
-    this.first = add(x, first);
+    if (recorder != null) {
+      recorder.add(x);
+    }
+    if (slab != null) {
+      if (count == slab.length) {
+        slab = Arrays.copyOf(slab, Math.max(16, 2 * count));
+      }
+      int i = lowerBound(slab, count, x + 1L);
+      System.arraycopy(slab, i, slab, i + 1, count - i);
+      slab[i] = x;
+    } else {
+      this.first = add(x, first);
+    }
+    count++;
+    if (bloom != null) {
+      bloom.add(BloomFilter.hash(x));
+      checkBloomFilter();
+    }
   }
   
   private static Node add(int x, Node n) {
@@ -71,28 +119,247 @@ public class SortedList {
     }
   }
   
+  /*
+   * gränsen där addAll sorterar parallellt
+   */
+  private static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+  /**
+   * Add all values in an array to the list. The values are sorted first and
+   * then merged into the list in one pass.
+   *
+   * @param values the values to be added, in any order
+   *
+   * Note to the programmer: Runs in O(k log k + n) time if k values are added
+   * to a list of length n, instead of O(k*n) for repeated calls to add.
+   */
+  public void addAll(int[] values) {
+    if (recorder != null) {
+      for (int x : values) {
+        recorder.add(x);
+      }
+    }
+    int[] sorted = values.clone();
+    sort(sorted);
+    if (slab != null) {
+      slab = merge(slab, count, sorted, sorted.length);
+      count += sorted.length;
+    } else {
+      mergeNodes(sorted);
+    }
+    if (bloom != null) {
+      for (int x : sorted) {
+        bloom.add(BloomFilter.hash(x));
+      }
+      checkBloomFilter();
+    }
+  }
+
+  private void mergeNodes(int[] sorted) {
+    Node head = new Node(0, first);
+    Node prev = head;
+    for (int x : sorted) {
+      while (prev.next != null && prev.next.data <= x) {
+        prev = prev.next;
+      }
+      prev = prev.next = new Node(x, prev.next);
+    }
+    first = head.next;
+    count += sorted.length;
+  }
+
+  /**
+   * Add all values in a stream to the list
+   *
+   * @param values the values to be added, in any order
+   */
+  public void addAll(IntStream values) {
+    addAll(values.toArray());
+  }
+
+  /**
+   * Create a list from values in any order
+   *
+   * @param values the values of the new list
+   * @return a new list object containing the values
+   *
+   * Note to the programmer: Runs in O(n) time if the values are already sorted,
+   * otherwise in O(n log n).
+   */
+  public static SortedList of(int... values) {
+    int[] sorted = values.clone();
+    sort(sorted);
+    Node n = null;
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      n = new Node(sorted[i], n);
+    }
+    return new SortedList(n);
+  }
+
+  private static void sort(int[] a) {
+    for (int i = 1; i < a.length; i++) {
+      if (a[i] < a[i - 1]) {
+        if (a.length > PARALLEL_SORT_THRESHOLD) {
+          Arrays.parallelSort(a);
+        } else {
+          Arrays.sort(a);
+        }
+        return;
+      }
+    }
+  }
+
   public SortedList copy() {
+    if (slab != null) {
+      return new SortedList(Arrays.copyOf(slab, count), count);
+    }
     return new SortedList(copy(first));
   }
   
+  /*
+   * kopierar noderna iterativt så att långa listor inte ger StackOverflowError
+   */
   private static Node copy(Node n) {
-    if (n == null) {
-      return null;
-    } else {
-      return new Node(n.data, copy(n.next));
+    Node head = new Node(0, null);
+    Node tail = head;
+    for (Node t = n; t != null; t = t.next) {
+      tail = tail.next = new Node(t.data, null);
+    }
+    return head.next;
+  }
+  
+  /**
+   * Put a Bloom filter in front of contains and containsIter, so that
+   * most lookups of missing values return without scanning the list.
+   * Removed values stay in the filter until it is rebuilt, which happens
+   * when the values added and removed since the last build exceed the
+   * capacity of the filter. The rebuilt filter has room for twice the
+   * current size.
+   *
+   * @param fpp the wanted false positive rate, e.g. 0.01
+   */
+  public void enableBloomFilter(double fpp) {
+    bloom = new BloomFilter(1, fpp);
+    rebuildBloomFilter();
+  }
+
+  public void disableBloomFilter() {
+    bloom = null;
+  }
+
+  /**
+   * @return the Bloom filter with its measured false positive rate, or null
+   */
+  public BloomFilter bloomFilter() {
+    return bloom;
+  }
+
+  /**
+   * Record add, addAll, contains, remove and merge to a workload trace
+   * @param recorder the recorder, or null to stop recording
+   */
+  public void setRecorder(WorkloadTrace.Recorder recorder) {
+    this.recorder = recorder;
+  }
+
+  private void removed(int n) {
+    if (bloom != null) {
+      stale += n;
+      checkBloomFilter();
+    }
+  }
+
+  private void checkBloomFilter() {
+    if (count + stale > bloom.capacity()) {
+      rebuildBloomFilter();
+    }
+  }
+
+  private void rebuildBloomFilter() {
+    bloom.clear(Math.max(1024, 2 * count));
+    stale = 0;
+    for (int i = 0; slab != null && i < count; i++) {
+      bloom.add(BloomFilter.hash(slab[i]));
+    }
+    for (Node t = first; t != null; t = t.next) {
+      bloom.add(BloomFilter.hash(t.data));
     }
   }
   
   private SortedList(Node n) {  // A private constructor
     first = n;
+    for (Node t = n; t != null; t = t.next) {
+      count++;
+    }
+  }
+
+  private SortedList(int[] slab, int count) {  // en lista i slab-läge
+    this.slab = slab;
+    this.count = count;
+  }
+
+  /**
+   * Store the list in slab mode: the data items are kept in one int array
+   * instead of one node each. copy is then an array clone and merge merges
+   * into one array, so a copy is released together with its array.
+   * contains and the position queries use binary search, and add shifts
+   * the larger items. The methods that remove items, the set operations
+   * and the views turn the list back into nodes first.
+   */
+  public void useSlab() {
+    if (slab == null) {
+      slab = toIntArray();
+      first = null;
+    }
+  }
+
+  /**
+   * @return true if the list is in slab mode
+   */
+  public boolean isSlab() {
+    return slab != null;
+  }
+
+  /*
+   * lämnar slab-läge, för metoderna som arbetar med noder
+   */
+  private void thaw() {
+    if (slab != null) {
+      Node n = null;
+      for (int i = count - 1; i >= 0; i--) {
+        n = new Node(slab[i], n);
+      }
+      first = n;
+      slab = null;
+    }
+  }
+
+  /*
+   * första positionen i a[0..n) med ett värde som är minst x
+   */
+  private static int lowerBound(int[] a, int n, long x) {
+    int lo = 0;
+    int hi = n;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (a[mid] < x) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
   }
   
   public int removeFirst() {
+    thaw();
     if (first == null) {
       throw new ListException("Empty list in removeFirst");
     }
     int result = first.data;
     first = first.next;
+    count--;
+    removed(1);
     return result;
   }
   
@@ -114,6 +381,30 @@ public class SortedList {
    * in O(n) time if the list is of length n.
    */
   public boolean contains(int x) {
+    if (recorder != null) {
+      recorder.contains(x);
+    }
+    return find(x);
+  }
+  
+  private boolean find(int x) {
+    if (bloom == null) {
+      return search(x);
+    } else if (!bloom.mightContain(BloomFilter.hash(x))) {
+      return false;
+    }
+    boolean found = search(x);
+    if (!found) {
+      bloom.falsePositive();
+    }
+    return found;
+  }
+  
+  private boolean search(int x) {
+    if (slab != null) {
+      int i = lowerBound(slab, count, x);
+      return i < count && slab[i] == x;
+    }
     return contains(x, first);
   }
   
@@ -138,6 +429,16 @@ public class SortedList {
    * in O(n) time if the list is of length n.
    */
   public boolean containsIter(int x) {
+    if (bloom != null && !bloom.mightContain(BloomFilter.hash(x))) {
+      return false;
+    }
+    if (slab != null) {
+      boolean found = search(x);
+      if (!found && bloom != null) {
+        bloom.falsePositive();
+      }
+      return found;
+    }
     Node n = first;
     boolean status = false;
     while (n != null) {
@@ -146,6 +447,9 @@ public class SortedList {
       }
       n = n.next;
     }
+    if (bloom != null) {
+      bloom.falsePositive();
+    }
     return status;
   }
   
@@ -159,6 +463,9 @@ public class SortedList {
    * in O(n) time if the list is of length n.
    */
   public int getLast() {
+    if (slab != null) {
+      return getLastIter();
+    }
     Node n = first;
     return getLast(n);
   }
@@ -182,6 +489,9 @@ public class SortedList {
    * is of length n.
    */
   public int getLastIter() {
+    if (slab != null && count > 0) {
+      return slab[count - 1];
+    }
     Node n = first;
     if (n == null) {
       throw new ListException("This list is empty!");
@@ -204,6 +514,12 @@ public class SortedList {
    * in O(n) time if the list is of length n.
    */
   public int atIndex(int i) {
+    if (slab != null) {
+      if (i < 0 || i >= count) {
+        throw new ListException("Index does not exist!");
+      }
+      return slab[i];
+    }
     Node n = first;
     return atIndex(i, n);
   }
@@ -228,6 +544,10 @@ public class SortedList {
    * in O(n) time if the list is of length n.
    */
   public int indexOf(int x) {
+    if (slab != null) {
+      int i = lowerBound(slab, count, x);
+      return i < count && slab[i] == x ? i : -1;
+    }
     Node n = first;
     int counter = 0;
     return indexOf(x, counter, first);
@@ -251,6 +571,13 @@ public class SortedList {
    */
   public void clear() {
     first = null;
+    if (slab != null) {
+      slab = new int[0];
+    }
+    count = 0;
+    if (bloom != null) {
+      rebuildBloomFilter();
+    }
   }
   
   /**
@@ -263,16 +590,22 @@ public class SortedList {
    * (tricky) Should run in O(n) time if the list is of length n.
    */
   public int removeLast() {
-    
+    thaw();
     Node n = first;
     if(n == null){
       throw new ListException("empty");
     }else if(n.next == null){
       first =null;
+      count = 0;
+      removed(1);
     return n.data;
     }else{
       n = removeLast(first);
-      return n.data;
+      int result = n.next.data;
+      n.next = null;
+      count--;
+      removed(1);
+      return result;
     }
   }
   
@@ -294,19 +627,24 @@ public class SortedList {
    * @throws ListException if x is not found
    */
   public void remove(int x) {
+    if (recorder != null) {
+      recorder.remove(x);
+    }
+    thaw();
     Node n = first;
-    if (!this.contains(x)) {
+    if (!find(x)) {
       throw new ListException("The value: " + x + " does not exist in the list!");
-    } else if (first.data == x) {
-      first = n.next;
     }
-    while (n.next != null) {
-      if (x == n.next.data) {
-        n.next = n.next.next;
-        return;
+    if (first.data == x) {
+      first = n.next;
+    } else {
+      while (x != n.next.data) {
+        n = n.next;
       }
-      n = n.next;
+      n.next = n.next.next;
     }
+    count--;
+    removed(1);  // efter urlänkningen, så att ett ombyggt Bloomfilter inte får med x
   }
   
   /**
@@ -341,31 +679,58 @@ public class SortedList {
    * 8, 9}
    *
    * @param l the other list to be used
-   * @return a new list object containing the intersection of the lists
+   * @return a new list object containing the intersection of the lists, in
+   * slab mode if either list is
    *
-   * Note to the programmer: Should be implemented with recursion Should run
-   * in O(n+m) time if the list are of length n and m.
+   * Note to the programmer: Implemented with iteration so that long lists do
+   * not overflow the stack. Should run in O(n+m) time if the list are of
+   * length n and m.
    */
   public SortedList merge(SortedList l) {
+    if (recorder != null) {
+      recorder.merge(l.size());
+    }
+    if (slab != null || l.slab != null) {
+      return new SortedList(merge(values(), count, l.values(), l.count), count + l.count);
+    }
     return new SortedList(merge(this.first, l.first));
   }
-  
-  private Node merge(Node l, Node m) {
-    //System.out.println(l.data + "    " + m.data);
-    if (l == null && m == null) {
-      return null;
+
+  /*
+   * slår ihop a[0..n) och b[0..m) till en ny array
+   */
+  private static int[] merge(int[] a, int n, int[] b, int m) {
+    int[] result = new int[n + m];
+    int i = 0, j = 0, k = 0;
+    while (i < n && j < m) {
+      result[k++] = a[i] <= b[j] ? a[i++] : b[j++];
     }
-    if (l == null) {
-      return copy(m);
-    } else if (m == null) {
-      return copy(l);
-    } else if (l.data > m.data) {
-      //System.out.println(l.data + "    " + m.data);
-      return new Node(m.data, merge(m.next, l));
-    } else {
-      //System.out.println(l.data + "    " + m.data);
-      return new Node(l.data, merge(l.next, m));
+    System.arraycopy(a, i, result, k, n - i);
+    System.arraycopy(b, j, result, k + n - i, m - j);
+    return result;
+  }
+
+  /*
+   * datan i slab-läge, annars kopierad till en ny array
+   */
+  private int[] values() {
+    return slab != null ? slab : toIntArray();
+  }
+  
+  private static Node merge(Node l, Node m) {
+    Node head = new Node(0, null);
+    Node tail = head;
+    while (l != null && m != null) {
+      if (l.data > m.data) {
+        tail = tail.next = new Node(m.data, null);
+        m = m.next;
+      } else {
+        tail = tail.next = new Node(l.data, null);
+        l = l.next;
+      }
     }
+    tail.next = copy(l != null ? l : m);
+    return head.next;
   }
   
   
@@ -382,6 +747,9 @@ public class SortedList {
    *
    */
   public boolean equals(SortedList l) {
+    if (slab != null || l.slab != null) {
+      return Arrays.equals(values(), 0, count, l.values(), 0, l.count);
+    }
     return equals(first, l.first);
   }
   
@@ -394,7 +762,527 @@ public class SortedList {
       return ((a.data == b.data) && equals(a.next, b.next));
     }
   }
-  
+
+  /**
+   * Compute the intersection of this list and another list. Duplicates are
+   * collapsed, i.e. every common value occurs once in the result.
+   * <p>
+   * Example: {1, 3, 3, 4, 8} intersected with {2, 3, 8, 8, 9} gives {3, 8}
+   *
+   * @param l the other list to be used
+   * @return a new list object containing the values found in both lists
+   *
+   * Note to the programmer: Implemented with iteration since the lists may be
+   * long. Runs in O(n+m) time if the lists are of length n and m.
+   */
+  public SortedList intersect(SortedList l) {
+    thaw();
+    l.thaw();
+    Node head = new Node(0, null);
+    Node tail = head;
+    Node a = first;
+    Node b = l.first;
+    while (a != null && b != null) {
+      if (a.data < b.data) {
+        a = a.next;
+      } else if (a.data > b.data) {
+        b = b.next;
+      } else {
+        tail = tail.next = new Node(a.data, null);
+        a = skipEqual(a);
+        b = skipEqual(b);
+      }
+    }
+    return new SortedList(head.next);
+  }
+
+  /**
+   * Count the distinct values found in both this list and another list
+   * without building a result list.
+   *
+   * @param l the other list to be used
+   * @return the size that <code>intersect(l)</code> would have
+   *
+   * Note to the programmer: Runs in O(n+m) time and allocates nothing.
+   */
+  public int intersectionSize(SortedList l) {
+    thaw();
+    l.thaw();
+    int count = 0;
+    Node a = first;
+    Node b = l.first;
+    while (a != null && b != null) {
+      if (a.data < b.data) {
+        a = a.next;
+      } else if (a.data > b.data) {
+        b = b.next;
+      } else {
+        count++;
+        a = skipEqual(a);
+        b = skipEqual(b);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Compute the union of this list and another list. Unlike
+   * <code>merge</code> duplicates are collapsed.
+   * <p>
+   * Example: {1, 3, 3, 4} and {2, 3, 8} gives {1, 2, 3, 4, 8}
+   *
+   * @param l the other list to be used
+   * @return a new list object containing every value from either list once
+   *
+   * Note to the programmer: Runs in O(n+m) time.
+   */
+  public SortedList unionDistinct(SortedList l) {
+    thaw();
+    l.thaw();
+    Node head = new Node(0, null);
+    Node tail = head;
+    Node a = first;
+    Node b = l.first;
+    while (a != null || b != null) {
+      int x;
+      if (b == null || (a != null && a.data < b.data)) {
+        x = a.data;
+      } else {
+        x = b.data;
+      }
+      tail = tail.next = new Node(x, null);
+      while (a != null && a.data == x) {
+        a = a.next;
+      }
+      while (b != null && b.data == x) {
+        b = b.next;
+      }
+    }
+    return new SortedList(head.next);
+  }
+
+  /**
+   * Compute the values of this list that are not in another list.
+   * Duplicates are collapsed.
+   * <p>
+   * Example: {1, 3, 3, 4, 8} minus {2, 3, 8, 9} gives {1, 4}
+   *
+   * @param l the list whose values should be removed
+   * @return a new list object containing the difference
+   *
+   * Note to the programmer: Runs in O(n+m) time.
+   */
+  public SortedList difference(SortedList l) {
+    thaw();
+    l.thaw();
+    Node head = new Node(0, null);
+    Node tail = head;
+    Node a = first;
+    Node b = l.first;
+    while (a != null) {
+      while (b != null && b.data < a.data) {
+        b = b.next;
+      }
+      if (b == null || b.data != a.data) {
+        tail = tail.next = new Node(a.data, null);
+      }
+      a = skipEqual(a);
+    }
+    return new SortedList(head.next);
+  }
+
+  /**
+   * Compute the values found in exactly one of this list and another list.
+   * Duplicates are collapsed.
+   * <p>
+   * Example: {1, 3, 4} and {3, 8} gives {1, 4, 8}
+   *
+   * @param l the other list to be used
+   * @return a new list object containing the symmetric difference
+   *
+   * Note to the programmer: Runs in O(n+m) time.
+   */
+  public SortedList symmetricDifference(SortedList l) {
+    thaw();
+    l.thaw();
+    Node head = new Node(0, null);
+    Node tail = head;
+    Node a = first;
+    Node b = l.first;
+    while (a != null || b != null) {
+      if (b == null || (a != null && a.data < b.data)) {
+        tail = tail.next = new Node(a.data, null);
+        a = skipEqual(a);
+      } else if (a == null || b.data < a.data) {
+        tail = tail.next = new Node(b.data, null);
+        b = skipEqual(b);
+      } else {
+        a = skipEqual(a);
+        b = skipEqual(b);
+      }
+    }
+    return new SortedList(head.next);
+  }
+
+  /**
+   * Compute the rank of a value, i.e. the number of data items smaller than it
+   *
+   * @param x the value to be ranked
+   * @return the number of data items less than x
+   *
+   * Note to the programmer: Runs in O(r) time where r is the rank.
+   */
+  public int rank(int x) {
+    if (slab != null) {
+      return lowerBound(slab, count, x);
+    }
+    int count = 0;
+    for (Node t = first; t != null && t.data < x; t = t.next) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Count the data items in a closed range
+   *
+   * @param lo the smallest value to be counted
+   * @param hi the largest value to be counted
+   * @return the number of data items x with lo &lt;= x &lt;= hi
+   */
+  public int countInRange(int lo, int hi) {
+    if (slab != null) {
+      return Math.max(0, lowerBound(slab, this.count, hi + 1L) - lowerBound(slab, this.count, lo));
+    }
+    int count = 0;
+    Node t = first;
+    while (t != null && t.data < lo) {
+      t = t.next;
+    }
+    while (t != null && t.data <= hi) {
+      count++;
+      t = t.next;
+    }
+    return count;
+  }
+
+  /**
+   * Remove all data items in a closed range. The nodes are unlinked with a
+   * single relink.
+   *
+   * @param lo the smallest value to be removed
+   * @param hi the largest value to be removed
+   * @return the number of removed data items
+   */
+  public int removeRange(int lo, int hi) {
+    thaw();
+    Node head = new Node(0, first);
+    Node prev = head;
+    while (prev.next != null && prev.next.data < lo) {
+      prev = prev.next;
+    }
+    int count = 0;
+    Node t = prev.next;
+    while (t != null && t.data <= hi) {
+      count++;
+      t = t.next;
+    }
+    prev.next = t;
+    first = head.next;
+    this.count -= count;
+    removed(count);
+    return count;
+  }
+
+  /**
+   * Remove all data items smaller than a value
+   *
+   * @param t the smallest value to be kept
+   * @return the number of removed data items
+   *
+   * Note to the programmer: Runs in O(r) time where r is the number of removed
+   * items, which are dropped by moving <code>first</code> once.
+   */
+  public int removeBelow(int t) {
+    thaw();
+    int count = 0;
+    Node n = first;
+    while (n != null && n.data < t) {
+      count++;
+      n = n.next;
+    }
+    first = n;
+    this.count -= count;
+    removed(count);
+    return count;
+  }
+
+  /**
+   * Create a view of the data items in a closed range. The view shares the
+   * nodes of this list and is evaluated on every call, so later changes to
+   * the list are visible through the view.
+   *
+   * @param lo the smallest value in the view
+   * @param hi the largest value in the view
+   * @return a view of the data items x with lo &lt;= x &lt;= hi
+   */
+  public SubList subList(int lo, int hi) {
+    return new SubList(lo, hi);
+  }
+
+  /**
+   * View of the data items of a list within a closed range
+   */
+  public class SubList {
+    private final int lo;
+    private final int hi;
+
+    private SubList(int lo, int hi) {
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    /*
+     * första noden i vyn eller null om vyn är tom
+     */
+    private Node start() {
+      thaw();
+      Node t = first;
+      while (t != null && t.data < lo) {
+        t = t.next;
+      }
+      return t != null && t.data <= hi ? t : null;
+    }
+
+    public int size() {
+      return countInRange(lo, hi);
+    }
+
+    public boolean contains(int x) {
+      return x >= lo && x <= hi && SortedList.this.contains(x);
+    }
+
+    /**
+     * Find the data item at a specified position in the view
+     *
+     * @param i the position to be checked
+     * @return the value at position <code>i</code>
+     * @throws ListException if <code>i</code> specifies a nonexistent position
+     */
+    public int atIndex(int i) {
+      Node t = start();
+      for (int k = 0; k < i && t != null; k++) {
+        t = t.next;
+      }
+      if (t == null || i < 0 || t.data > hi) {
+        throw new ListException("Index does not exist!");
+      }
+      return t.data;
+    }
+
+    /**
+     * Create a new list containing the data items of the view
+     */
+    public SortedList copy() {
+      Node head = new Node(0, null);
+      Node tail = head;
+      for (Node t = start(); t != null && t.data <= hi; t = t.next) {
+        tail = tail.next = new Node(t.data, null);
+      }
+      return new SortedList(head.next);
+    }
+
+    public String toString() {
+      StringBuilder result = new StringBuilder("(");
+      for (Node t = start(); t != null && t.data <= hi; t = t.next) {
+        result.append(' ').append(t.data);
+      }
+      return result.append(')').toString();
+    }
+  }
+
+  /**
+   * Create a compressed, immutable copy of the list
+   *
+   * @return a compressed list containing the same data items
+   *
+   * Note to the programmer: Implemented with iteration. Runs in O(n) time.
+   */
+  public CompressedSortedList compress() {
+    return CompressedSortedList.of(toIntArray());
+  }
+
+  /**
+   * Merge this list with another list into a compressed list. Unlike
+   * <code>merge</code> no node is allocated: the values are merged into one
+   * array which is then compressed. The result is an immutable
+   * <code>CompressedSortedList</code>, so this suits merged snapshots
+   * that are only read; <code>merge</code> allocates one node per value
+   * unless one of the lists is in slab mode.
+   *
+   * @param l the other list to be used
+   * @return a new compressed list containing the values of both lists
+   *
+   * Note to the programmer: Runs in O(n+m) time.
+   */
+  public CompressedSortedList mergeCompressed(SortedList l) {
+    if (slab != null || l.slab != null) {
+      return CompressedSortedList.of(merge(values(), count, l.values(), l.count));
+    }
+    int[] result = new int[count + l.count];
+    int k = 0;
+    Node a = first;
+    Node b = l.first;
+    while (a != null || b != null) {
+      if (b == null || (a != null && a.data <= b.data)) {
+        result[k++] = a.data;
+        a = a.next;
+      } else {
+        result[k++] = b.data;
+        b = b.next;
+      }
+    }
+    return CompressedSortedList.of(result);
+  }
+
+  /**
+   * Copy the data items, in order, to a new array
+   *
+   * @return an array of length <code>size()</code> with all data items
+   *
+   * Note to the programmer: Runs in O(n) time in a single pass.
+   */
+  public int[] toIntArray() {
+    if (slab != null) {
+      return Arrays.copyOf(slab, count);
+    }
+    int[] result = new int[count];
+    int i = 0;
+    for (Node t = first; t != null; t = t.next) {
+      result[i++] = t.data;
+    }
+    return result;
+  }
+
+  /**
+   * Create an iterator over the data items in ascending order. The values
+   * are not boxed.
+   *
+   * @return an iterator over the list
+   */
+  public PrimitiveIterator.OfInt iterator() {
+    if (slab != null) {
+      return Arrays.stream(slab, 0, count).iterator();
+    }
+    return new PrimitiveIterator.OfInt() {
+      private Node next = first;
+
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      public int nextInt() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        int result = next.data;
+        next = next.next;
+        return result;
+      }
+    };
+  }
+
+  /**
+   * Create a spliterator over the data items. It is ORDERED, SORTED and
+   * SIZED and splits the list in two halves, so it can be used by parallel
+   * streams.
+   *
+   * @return a spliterator over the list
+   */
+  public Spliterator.OfInt spliterator() {
+    if (slab != null) {
+      return Spliterators.spliterator(slab, 0, count, Spliterator.ORDERED | Spliterator.SORTED | Spliterator.NONNULL);
+    }
+    return new NodeSpliterator(first, count);
+  }
+
+  /**
+   * @return a sequential <code>IntStream</code> of the data items, which
+   * may be turned parallel with <code>parallel()</code>
+   */
+  public IntStream stream() {
+    return StreamSupport.intStream(spliterator(), false);
+  }
+
+  /*
+   * spliterator som täcker ett givet antal noder från en startnod
+   */
+  private static class NodeSpliterator implements Spliterator.OfInt {
+    private Node current;
+    private int remaining;
+
+    NodeSpliterator(Node current, int remaining) {
+      this.current = current;
+      this.remaining = remaining;
+    }
+
+    public boolean tryAdvance(IntConsumer action) {
+      if (remaining == 0) {
+        return false;
+      }
+      action.accept(current.data);
+      current = current.next;
+      remaining--;
+      return true;
+    }
+
+    public void forEachRemaining(IntConsumer action) {
+      Node t = current;
+      for (int i = remaining; i > 0; i--) {
+        action.accept(t.data);
+        t = t.next;
+      }
+      current = t;
+      remaining = 0;
+    }
+
+    public Spliterator.OfInt trySplit() {
+      if (remaining < 2) {
+        return null;
+      }
+      int half = remaining / 2;
+      Node start = current;
+      for (int i = 0; i < half; i++) {
+        current = current.next;
+      }
+      remaining -= half;
+      return new NodeSpliterator(start, half);
+    }
+
+    public long estimateSize() {
+      return remaining;
+    }
+
+    public int characteristics() {
+      return ORDERED | SORTED | SIZED | SUBSIZED | NONNULL;
+    }
+
+    public Comparator<? super Integer> getComparator() {
+      return null;
+    }
+  }
+
+  /*
+   * returnerar första noden efter n med ett annat värde än n
+   */
+  private static Node skipEqual(Node n) {
+    int x = n.data;
+    while (n != null && n.data == x) {
+      n = n.next;
+    }
+    return n;
+  }
+
   /**
    * Main method trying the methods above
    */
@@ -494,7 +1382,29 @@ public class SortedList {
     System.out.println("p: " + p);
     System.out.println("q: " + q);
     System.out.println("p.merge(q): " + p.merge(q));
+    System.out.println("p.mergeCompressed(q): " + p.mergeCompressed(q));
+    System.out.println("p.intersect(q): " + p.intersect(q));
+    System.out.println("p.unionDistinct(q): " + p.unionDistinct(q));
+    System.out.println("p.difference(q): " + p.difference(q));
+    System.out.println("p.symmetricDifference(q): " + p.symmetricDifference(q));
+    System.out.println("p.intersectionSize(q): " + p.intersectionSize(q));
     
+    SortedList b = SortedList.of(9, 4, 6, 1);
+    System.out.println("SortedList.of(9, 4, 6, 1): " + b);
+    b.addAll(new int[] {5, 0, 9, 12});
+    System.out.println("after addAll(5, 0, 9, 12): " + b);
+
+    System.out.println("b.rank(6): " + b.rank(6));
+    System.out.println("b.countInRange(4, 9): " + b.countInRange(4, 9));
+    SubList view = b.subList(4, 9);
+    System.out.println("b.subList(4, 9): " + view);
+    System.out.println("b.removeRange(5, 6): " + b.removeRange(5, 6) + " -> " + b);
+    System.out.println("view after removeRange: " + view);
+    System.out.println("b.removeBelow(4): " + b.removeBelow(4) + " -> " + b);
+
+    System.out.println("b.toIntArray(): " + Arrays.toString(b.toIntArray()));
+    System.out.println("b.stream().sum(): " + b.stream().sum());
+
     SortedList pp = new SortedList();
     pp.add(5);
     pp.add(2);
@@ -506,7 +1416,17 @@ public class SortedList {
     System.out.println(s.toString());
     
     System.out.println(s.merge(p));
-    
+
+    b.enableBloomFilter(0.01);
+    System.out.println("With Bloom filter, b.contains(9): " + b.contains(9) + ", b.contains(8): "
+                         + b.contains(8) + ", " + b.bloomFilter());
+
+    b.useSlab();
+    SortedList c = b.copy();
+    c.add(7);
+    System.out.println("Slab copy plus 7: " + c + ", slab: " + c.isSlab() + ", c.merge(b): " + c.merge(b)
+                         + ", c.indexOf(7): " + c.indexOf(7) + ", " + c.memoryFootprint());
+
   }
   
 }
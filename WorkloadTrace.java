@@ -0,0 +1,569 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Recording and replay of the operations applied to a BST or SortedList.
+ * <p>
+ * A <code>Recorder</code> set on a structure with <code>setRecorder</code>
+ * appends every add, contains, remove and merge to a compact binary
+ * trace: an operation byte followed by the key, ints as zigzag varints
+ * and strings as a varint length and UTF-8 bytes. A merge records the
+ * size of the other structure. Batch calls such as <code>addAll</code>
+ * are recorded as their single operations. The recorder writes to its
+ * own buffer and is not thread-safe, like the structures.
+ * <p>
+ * <code>replay</code> loads a trace into memory and runs it against any
+ * <code>Target</code>, timing every operation into a latency histogram
+ * per operation type.
+ */
+public class WorkloadTrace {
+  private static final int MAGIC = 0x57545243;   // "WTRC"
+  private static final int VERSION = 1;
+
+  static final byte ADD = 1;
+  static final byte CONTAINS = 2;
+  static final byte REMOVE = 3;
+  static final byte MERGE = 4;
+  private static final byte STRING = (byte) 0x80;   // flag for operations with string keys
+  private static final String[] NAMES = {"", "add", "contains", "remove", "merge"};
+
+  /**
+   * Writes operations to a trace file
+   */
+  public static class Recorder implements AutoCloseable {
+    private final OutputStream out;
+    private final byte[] buf = new byte[1 << 16];
+    private int pos;
+    private long operations;
+
+    /**
+     * Create a trace file, replacing any existing file
+     * @param file the trace file
+     */
+    public Recorder(Path file) throws IOException {
+      out = Files.newOutputStream(file);
+      for (int shift = 24; shift >= 0; shift -= 8) {
+        buf[pos++] = (byte) (MAGIC >>> shift);
+      }
+      buf[pos++] = VERSION;
+    }
+
+    void add(int x) {
+      record(ADD, x);
+    }
+
+    void add(String key) {
+      record(ADD, key);
+    }
+
+    void contains(int x) {
+      record(CONTAINS, x);
+    }
+
+    void contains(String key) {
+      record(CONTAINS, key);
+    }
+
+    void remove(int x) {
+      record(REMOVE, x);
+    }
+
+    void merge(int otherSize) {
+      ensure(6);
+      buf[pos++] = MERGE;
+      varint(otherSize);
+      operations++;
+    }
+
+    private void record(byte op, int x) {
+      ensure(6);
+      buf[pos++] = op;
+      varint((x << 1) ^ (x >> 31));
+      operations++;
+    }
+
+    private void record(byte op, String key) {
+      int n = key.length();
+      ensure(6 + n);
+      buf[pos++] = (byte) (op | STRING);
+      int start = pos;
+      varint(n);
+      for (int i = 0; i < n; i++) {
+        char c = key.charAt(i);
+        if (c >= 0x80) {
+          // Not ASCII; rewrite the key as UTF-8
+          pos = start;
+          byte[] utf8 = key.getBytes(StandardCharsets.UTF_8);
+          ensure(5 + utf8.length);
+          varint(utf8.length);
+          System.arraycopy(utf8, 0, buf, pos, utf8.length);
+          pos += utf8.length;
+          operations++;
+          return;
+        }
+        buf[pos++] = (byte) c;
+      }
+      operations++;
+    }
+
+    private void varint(int v) {
+      while ((v & ~0x7f) != 0) {
+        buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+        v >>>= 7;
+      }
+      buf[pos++] = (byte) v;
+    }
+
+    /**
+     * Make room for n more bytes
+     */
+    private void ensure(int n) {
+      if (pos + n > buf.length) {
+        flush();
+        if (n > buf.length) {
+          throw new BST.BSTException("Key too long for the trace buffer: " + n + " bytes");
+        }
+      }
+    }
+
+    /**
+     * Write the buffered operations to the file
+     */
+    public void flush() {
+      try {
+        out.write(buf, 0, pos);
+        pos = 0;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * @return the number of recorded operations
+     */
+    public long operations() {
+      return operations;
+    }
+
+    public void close() throws IOException {
+      flush();
+      out.close();
+    }
+  }
+
+  /**
+   * A structure a trace can be replayed against. Operations the structure
+   * does not support throw UnsupportedOperationException and are counted
+   * as errors.
+   */
+  public interface Target {
+    default void add(int x) {
+      throw new UnsupportedOperationException("add(int)");
+    }
+
+    default void add(String key) {
+      throw new UnsupportedOperationException("add(String)");
+    }
+
+    default boolean contains(int x) {
+      throw new UnsupportedOperationException("contains(int)");
+    }
+
+    default boolean contains(String key) {
+      throw new UnsupportedOperationException("contains(String)");
+    }
+
+    default void remove(int x) {
+      throw new UnsupportedOperationException("remove(int)");
+    }
+
+    /**
+     * Prepare a merge with another structure of a given size. The other
+     * structure is built here, outside the timing; the returned action
+     * does the merge.
+     * @param n the size of the other structure
+     * @return the merge
+     */
+    default Runnable merge(int n) {
+      throw new UnsupportedOperationException("merge");
+    }
+  }
+
+  /**
+   * @return a target that merges with trees of random keys
+   */
+  public static Target of(BST t) {
+    return new Target() {
+      public void add(String key) {
+        t.add(key);
+      }
+
+      public boolean contains(String key) {
+        return t.contains(key);
+      }
+
+      public Runnable merge(int n) {
+        BST other = new BST();
+        Random rnd = new Random(n);
+        for (int i = 0; i < n; i++) {
+          other.add(Long.toString(rnd.nextLong() & Long.MAX_VALUE, 36));
+        }
+        return () -> t.union(other);
+      }
+    };
+  }
+
+  /**
+   * @return a target that merges with lists of random values
+   */
+  public static Target of(SortedList l) {
+    return new Target() {
+      public void add(int x) {
+        l.add(x);
+      }
+
+      public boolean contains(int x) {
+        return l.contains(x);
+      }
+
+      public void remove(int x) {
+        l.remove(x);
+      }
+
+      public Runnable merge(int n) {
+        SortedList other = SortedList.of(new Random(n).ints(n).toArray());
+        return () -> l.merge(other);
+      }
+    };
+  }
+
+  /**
+   * Latency histogram with 8 buckets per power of two, i.e. a relative
+   * error of at most 12.5 %
+   */
+  public static class Histogram {
+    private final long[] counts = new long[16 + 60 * 8];
+    private long count;
+    private long total;
+    private long max;
+
+    public void record(long nanos) {
+      counts[bucket(Math.max(0, nanos))]++;
+      count++;
+      total += nanos;
+      max = Math.max(max, nanos);
+    }
+
+    private static int bucket(long v) {
+      if (v < 16) {
+        return (int) v;
+      }
+      int e = 63 - Long.numberOfLeadingZeros(v);
+      return 16 + (e - 4) * 8 + (int) ((v >>> (e - 3)) & 7);
+    }
+
+    /**
+     * @return the largest value in a bucket
+     */
+    private static long upper(int b) {
+      if (b < 16) {
+        return b;
+      }
+      int e = (b - 16) / 8 + 4;
+      long sub = (b - 16) % 8;
+      return ((8 + sub + 1) << (e - 3)) - 1;
+    }
+
+    public long count() {
+      return count;
+    }
+
+    public double mean() {
+      return count == 0 ? 0 : (double) total / count;
+    }
+
+    public long max() {
+      return max;
+    }
+
+    /**
+     * @param p the percentile as a fraction, e.g. 0.99
+     * @return an upper bound for the value at the percentile
+     */
+    public long percentile(double p) {
+      long rank = (long) Math.ceil(p * count);
+      long seen = 0;
+      for (int b = 0; b < counts.length; b++) {
+        seen += counts[b];
+        if (seen >= Math.max(1, rank)) {
+          return Math.min(max, upper(b));
+        }
+      }
+      return max;
+    }
+
+    public String toString() {
+      return String.format("%d ops, mean %.0f ns, p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns",
+                           count, mean(), percentile(0.5), percentile(0.99), percentile(0.999), max);
+    }
+  }
+
+  /**
+   * The result of a replay
+   */
+  public static class Result {
+    private final Histogram[] histograms;
+    private final long nanos;
+    private final long errors;
+
+    private Result(Histogram[] histograms, long nanos, long errors) {
+      this.histograms = histograms;
+      this.nanos = nanos;
+      this.errors = errors;
+    }
+
+    public long operations() {
+      long n = 0;
+      for (int op = ADD; op <= MERGE; op++) {
+        n += histograms[op].count();
+      }
+      return n;
+    }
+
+    /**
+     * @return the operations per second
+     */
+    public double throughput() {
+      return operations() / (nanos / 1e9);
+    }
+
+    /**
+     * @return the number of operations that threw an exception
+     */
+    public long errors() {
+      return errors;
+    }
+
+    /**
+     * @param op the operation, e.g. "contains"
+     * @return the latencies of the operation
+     */
+    public Histogram histogram(String op) {
+      int i = Arrays.asList(NAMES).indexOf(op);
+      if (i < ADD) {
+        throw new BST.BSTException("Unknown operation: " + op);
+      }
+      return histograms[i];
+    }
+
+    public String toString() {
+      StringBuilder result = new StringBuilder(String.format("%d ops in %.1f ms, %.0f ops/s, %d errors",
+                                                             operations(), nanos / 1e6, throughput(), errors));
+      for (int op = ADD; op <= MERGE; op++) {
+        if (histograms[op].count() > 0) {
+          result.append(String.format("%n  %-8s %s", NAMES[op], histograms[op]));
+        }
+      }
+      return result.toString();
+    }
+  }
+
+  private final byte[] ops;
+  private final int[] ints;
+  private final String[] strings;
+
+  private WorkloadTrace(byte[] ops, int[] ints, String[] strings) {
+    this.ops = ops;
+    this.ints = ints;
+    this.strings = strings;
+  }
+
+  /**
+   * Load a trace file into memory
+   * @param file the trace file
+   * @return the trace
+   */
+  public static WorkloadTrace load(Path file) throws IOException {
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+      int magic = 0;
+      for (int i = 0; i < 4; i++) {
+        magic = magic << 8 | read(in);
+      }
+      int version = read(in);
+      if (magic != MAGIC || version != VERSION) {
+        throw new IOException("Not a version " + VERSION + " trace file: " + file);
+      }
+      byte[] ops = new byte[1024];
+      int[] ints = new int[1024];
+      String[] strings = new String[1024];
+      int n = 0;
+      int op;
+      while ((op = in.read()) >= 0) {
+        if (n == ops.length) {
+          ops = Arrays.copyOf(ops, 2 * n);
+          ints = Arrays.copyOf(ints, 2 * n);
+          strings = Arrays.copyOf(strings, 2 * n);
+        }
+        int kind = op & ~STRING;
+        if (kind < ADD || kind > MERGE || (op & STRING) != 0 && (kind == REMOVE || kind == MERGE)) {
+          throw new IOException("Bad operation " + op + " in trace file: " + file);
+        }
+        ops[n] = (byte) op;
+        if ((op & STRING) != 0) {
+          byte[] utf8 = new byte[varint(in)];
+          if (in.readNBytes(utf8, 0, utf8.length) < utf8.length) {
+            throw new EOFException("Truncated trace file: " + file);
+          }
+          strings[n] = new String(utf8, StandardCharsets.UTF_8);
+        } else if (op == MERGE) {
+          ints[n] = varint(in);
+        } else {
+          int z = varint(in);
+          ints[n] = (z >>> 1) ^ -(z & 1);
+        }
+        n++;
+      }
+      return new WorkloadTrace(Arrays.copyOf(ops, n), Arrays.copyOf(ints, n), Arrays.copyOf(strings, n));
+    }
+  }
+
+  private static int read(InputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new EOFException("Truncated trace file");
+    }
+    return b;
+  }
+
+  private static int varint(InputStream in) throws IOException {
+    int v = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = read(in);
+      v |= (b & 0x7f) << shift;
+      if (b < 0x80) {
+        return v;
+      }
+    }
+  }
+
+  /**
+   * @return the number of operations in the trace
+   */
+  public int size() {
+    return ops.length;
+  }
+
+  /**
+   * Run the trace against a target
+   * @param target the structure to run the operations on
+   * @return the throughput and latencies
+   */
+  public Result replay(Target target) {
+    Histogram[] histograms = new Histogram[MERGE + 1];
+    for (int op = ADD; op <= MERGE; op++) {
+      histograms[op] = new Histogram();
+    }
+    Runnable[] merges = new Runnable[ops.length];
+    long errors = 0;
+    for (int i = 0; i < ops.length; i++) {
+      if (ops[i] == MERGE) {
+        try {
+          merges[i] = target.merge(ints[i]);
+        } catch (RuntimeException e) {
+          errors++;
+        }
+      }
+    }
+    long begin = System.nanoTime();
+    for (int i = 0; i < ops.length; i++) {
+      int op = ops[i] & ~STRING;
+      boolean string = (ops[i] & STRING) != 0;
+      long start = System.nanoTime();
+      try {
+        switch (op) {
+          case ADD:
+            if (string) {
+              target.add(strings[i]);
+            } else {
+              target.add(ints[i]);
+            }
+            break;
+          case CONTAINS:
+            if (string) {
+              target.contains(strings[i]);
+            } else {
+              target.contains(ints[i]);
+            }
+            break;
+          case REMOVE:
+            target.remove(ints[i]);
+            break;
+          default:
+            if (merges[i] == null) {
+              continue;  // counted when it was prepared
+            }
+            merges[i].run();
+        }
+      } catch (RuntimeException e) {
+        errors++;
+        continue;
+      }
+      histograms[op].record(System.nanoTime() - start);
+    }
+    return new Result(histograms, System.nanoTime() - begin, errors);
+  }
+
+  /**
+   * Main-method showing calls to and results from all methods above
+   */
+  public static void main(String[] args) throws IOException {
+    Path file = Files.createTempFile("workload", ".trace");
+    try {
+      SortedList l = new SortedList();
+      try (Recorder recorder = new Recorder(file)) {
+        l.setRecorder(recorder);
+        for (int x : new int[] {5, 7, 3, 1, 9}) {
+          l.add(x);
+        }
+        l.contains(3);
+        l.contains(4);
+        l.remove(7);
+        l.merge(SortedList.of(2, 4));
+        l.setRecorder(null);
+        l.add(100);   // not recorded
+        System.out.println("Recorded " + recorder.operations() + " operations");
+      }
+      System.out.println("Trace file: " + Files.size(file) + " bytes");
+      WorkloadTrace trace = load(file);
+      System.out.println("Loaded " + trace.size() + " operations");
+      System.out.println("Replay on SortedList: " + trace.replay(of(new SortedList())));
+      System.out.println("Replay on a target without remove: " + trace.replay(new Target() {
+        public void add(int x) { }
+
+        public boolean contains(int x) {
+          return false;
+        }
+      }).errors() + " errors");
+
+      BST t = new BST();
+      try (Recorder recorder = new Recorder(file)) {
+        t.setRecorder(recorder);
+        t.addAll(new String[] {"C", "A", "KK", "Ö"});
+        t.contains("KK");
+        t.union(new BST());
+      }
+      System.out.println("Replay on splay tree: " + load(file).replay(of(new BST(BST.Policy.SPLAY))));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}